@@ -0,0 +1,479 @@
+/* 
+ * Copyright (c) 2011, Sjoerd van den Dries
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Technische Universiteit Eindhoven nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package ros.tf;
+
+import org.ros.message.Time;
+
+import javax.vecmath.Quat4d;
+import javax.vecmath.Vector3d;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.Random;
+
+/**
+ * Benchmarks for the hot paths of ros.tf: lookups (string and handle based, and the path search through
+ * lookupLists), inserts, TimeCache.insertData / getData and TransformStorage.interpolate.
+ * 
+ * Three synthetic tf graphs are used: a Turtlebot-sized chain of 12 frames, a PR2-sized tree of 100 frames
+ * and a forest of 10 such trees (1000 frames). Each is first filled with 10 seconds of data, published at
+ * realistic rates (static transforms once, on /tf_static), after which lookups are measured at random
+ * times in the buffered window, and inserts by continuing the stream. For every benchmark, the mean and
+ * percentiles of the latency and the bytes allocated per operation are printed; the latter needs a HotSpot
+ * JVM, and is -1 otherwise.
+ * 
+ * Before benchmarking, checkAllocationFree() checks that lookups through a 10-hop chain, by handle, by
+ * resolved string IDs and extrapolating past the newest data, do not allocate, and fails if they do.
+ * 
+ * The benchmarks are not part of the library build. To run them on a desktop JVM, compile them together
+ * with the ros.tf sources:
+ * 
+ *   javac -d /tmp/tfbench -cp libs/vecmath.jar:ROSJAVA_JARS src/ros/tf/*.java benchmarks/ros/tf/*.java
+ *   java -cp /tmp/tfbench:libs/vecmath.jar:ROSJAVA_JARS ros.tf.TfBenchmark [turtlebot] [pr2] [forest]
+ * 
+ * where ROSJAVA_JARS are the rosjava and rosjava_messages jars the library is built against.
+ */
+public class TfBenchmark {
+    
+    /** Seconds of data the graphs are filled with before measuring */
+    private static final int FILL_SECONDS = 10;
+    /** Number of operations measured per benchmark, after as many warm-up operations */
+    private static final int OPERATIONS = 200000;
+    /** Bytes checkAllocationFree tolerates per case regardless of the number of operations, for the JVM itself */
+    private static final long ALLOCATION_SLACK = 256;
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    
+    /**
+     * Synthetic tf graph: the edges with their publish rates in Hz, 0 for static transforms.
+     */
+    static class Graph {
+        final String name;
+        final ArrayList<String> parents = new ArrayList<String>();
+        final ArrayList<String> children = new ArrayList<String>();
+        final ArrayList<Double> rates = new ArrayList<Double>();
+        /** Per frame, the index of the tree it belongs to; lookups only query frames in the same tree */
+        final ArrayList<String> frames = new ArrayList<String>();
+        final ArrayList<Integer> trees = new ArrayList<Integer>();
+        
+        Graph(String name) {
+            this.name = name;
+        }
+        
+        void addRoot(String frame, int tree) {
+            frames.add(frame);
+            trees.add(tree);
+        }
+        
+        void addEdge(String parent, String child, double rate, int tree) {
+            parents.add(parent);
+            children.add(child);
+            rates.add(rate);
+            frames.add(child);
+            trees.add(tree);
+        }
+        
+        int edgeCount() {
+            return children.size();
+        }
+    }
+    
+    /**
+     * Chain of a Turtlebot: map, odom and base at their usual rates, the rest static sensor mounts.
+     */
+    static Graph turtlebot() {
+        Graph g = new Graph("turtlebot");
+        String[] chain = { "/map", "/odom", "/base_footprint", "/base_link", "/plate_bottom_link",
+                           "/plate_middle_link", "/plate_top_link", "/kinect_link", "/camera_link",
+                           "/camera_rgb_frame", "/camera_depth_frame", "/camera_depth_optical_frame" };
+        double[] rates = { 0, 10, 50, 0, 0, 0, 0, 0, 0, 0, 0, 0 };
+        g.addRoot(chain[0], 0);
+        for (int i = 1; i < chain.length; i++) {
+            g.addEdge(chain[i - 1], chain[i], rates[i], 0);
+        }
+        return g;
+    }
+    
+    /**
+     * Adds a PR2-like tree of size frames under root: base links at 50 Hz, and random kinematic chains of
+     * which about 60% are joints at 100 Hz and the rest static mounts.
+     */
+    static void addRobotTree(Graph g, String prefix, int size, int tree, Random random) {
+        String root = prefix + "/odom_combined";
+        g.addRoot(root, tree);
+        g.addEdge(root, prefix + "/base_footprint", 50, tree);
+        g.addEdge(prefix + "/base_footprint", prefix + "/base_link", 0, tree);
+        ArrayList<String> links = new ArrayList<String>();
+        links.add(prefix + "/base_link");
+        for (int i = 3; i < size; i++) {
+            // prefer recent links, so the tree gets kinematic chains rather than a star
+            int parent = Math.max(0, links.size() - 1 - (int) Math.abs(random.nextGaussian() * 4));
+            String link = prefix + "/link_" + i;
+            g.addEdge(links.get(parent), link, random.nextDouble() < 0.6 ? 100 : 0, tree);
+            links.add(link);
+        }
+    }
+    
+    static Graph pr2() {
+        Graph g = new Graph("pr2");
+        addRobotTree(g, "", 100, 0, new Random(1));
+        return g;
+    }
+    
+    static Graph forest() {
+        Graph g = new Graph("forest");
+        Random random = new Random(2);
+        for (int tree = 0; tree < 10; tree++) {
+            addRobotTree(g, "/robot_" + tree, 100, tree, random);
+        }
+        return g;
+    }
+    
+    /**
+     * Generates the transforms of a graph, in time order, from fromSeconds up to toSeconds; static
+     * transforms are only generated at time 0.
+     */
+    static class Stream {
+        final Graph graph;
+        final ArrayList<Integer> edges = new ArrayList<Integer>();
+        final ArrayList<Long> times = new ArrayList<Long>();
+        
+        Stream(Graph graph, int fromSeconds, int toSeconds) {
+            this.graph = graph;
+            long end = toSeconds * NANOS_PER_SECOND;
+            long[] next = new long[graph.edgeCount()];
+            Arrays.fill(next, fromSeconds * NANOS_PER_SECOND);
+            for (long t = fromSeconds * NANOS_PER_SECOND; t < end; t += 1000000) {
+                for (int e = 0; e < next.length; e++) {
+                    double rate = graph.rates.get(e);
+                    if (rate == 0) {
+                        if (t == 0) {
+                            edges.add(e);
+                            times.add(t);
+                        }
+                    } else if (t >= next[e]) {
+                        edges.add(e);
+                        times.add(t);
+                        next[e] += (long) (NANOS_PER_SECOND / rate);
+                    }
+                }
+            }
+        }
+        
+        int size() {
+            return edges.size();
+        }
+        
+        /** Inserts transform i of the stream into listener */
+        void insert(TfListener listener, int i, Vector3d translation, Quat4d rotation) {
+            int e = edges.get(i);
+            long time = times.get(i);
+            double angle = e + time * 1E-9;
+            translation.set(0.1 * e, 0.05, 0.2);
+            rotation.set(0, 0, Math.sin(angle / 2), Math.cos(angle / 2));
+            listener.setTransform(graph.parents.get(e), graph.children.get(e), time, translation, rotation,
+                                  graph.rates.get(e) == 0);
+        }
+    }
+    
+    /**
+     * Operation to benchmark; run(i) performs operation number i.
+     */
+    static abstract class Operation {
+        abstract void run(int i);
+    }
+    
+    public static void main(String[] args) {
+        ArrayList<Graph> graphs = new ArrayList<Graph>();
+        if (args.length == 0) {
+            args = new String[] { "turtlebot", "pr2", "forest" };
+        }
+        for (String arg : args) {
+            if (arg.equals("turtlebot")) graphs.add(turtlebot());
+            else if (arg.equals("pr2")) graphs.add(pr2());
+            else if (arg.equals("forest")) graphs.add(forest());
+            else throw new IllegalArgumentException("Unknown graph " + arg);
+        }
+        
+        checkAllocationFree();
+        System.out.printf("%-10s %-24s %10s %10s %10s %10s %10s%n",
+                          "graph", "benchmark", "mean ns", "p50 ns", "p99 ns", "p99.9 ns", "bytes/op");
+        for (Graph graph : graphs) {
+            benchmarkGraph(graph);
+        }
+        benchmarkTimeCache();
+    }
+    
+    static void benchmarkGraph(final Graph graph) {
+        final TfListener listener = new TfListener();
+        final Vector3d translation = new Vector3d();
+        final Quat4d rotation = new Quat4d();
+        Stream fill = new Stream(graph, 0, FILL_SECONDS);
+        for (int i = 0; i < fill.size(); i++) {
+            fill.insert(listener, i, translation, rotation);
+        }
+        
+        // random queries between frames of the same tree, at times in the buffered window
+        Random random = new Random(3);
+        final int queries = 4096;
+        final String[] targetIDs = new String[queries];
+        final String[] sourceIDs = new String[queries];
+        final int[] targets = new int[queries];
+        final int[] sources = new int[queries];
+        final long[] times = new long[queries];
+        final Time[] stamps = new Time[queries];
+        for (int q = 0; q < queries; q++) {
+            int target = random.nextInt(graph.frames.size());
+            int source;
+            do {
+                source = random.nextInt(graph.frames.size());
+            } while (source == target || !graph.trees.get(source).equals(graph.trees.get(target)));
+            targetIDs[q] = graph.frames.get(target);
+            sourceIDs[q] = graph.frames.get(source);
+            targets[q] = listener.getFrameHandle(targetIDs[q]);
+            sources[q] = listener.getFrameHandle(sourceIDs[q]);
+            times[q] = (long) ((1 + random.nextDouble() * (FILL_SECONDS - 2)) * NANOS_PER_SECOND);
+            stamps[q] = Time.fromNano(times[q]);
+        }
+        
+        final StampedTransform out = StampedTransform.getIdentity();
+        measure(graph.name, "lookupTransform(String)", new Operation() {
+            void run(int i) {
+                int q = i & (queries - 1);
+                listener.lookupTransform(targetIDs[q], sourceIDs[q], stamps[q]);
+            }
+        });
+        measure(graph.name, "lookupTransform(handle)", new Operation() {
+            void run(int i) {
+                int q = i & (queries - 1);
+                listener.lookupTransform(targets[q], sources[q], times[q], out);
+            }
+        });
+        measure(graph.name, "lookupTransform(repeat)", new Operation() {
+            void run(int i) {
+                // few distinct queries, as a display refreshing the same frames would make
+                int q = i & 7;
+                listener.lookupTransform(targets[q], sources[q], times[q], out);
+            }
+        });
+        // all frames of the first tree into its root, as drawing a robot model would
+        final ArrayList<String> tree = new ArrayList<String>();
+        for (int f = 0; f < graph.frames.size(); f++) {
+            if (graph.trees.get(f) == 0) {
+                tree.add(graph.frames.get(f));
+            }
+        }
+        final String[] links = tree.toArray(new String[tree.size()]);
+        final StampedTransform[] linkTransforms = new StampedTransform[links.length];
+        measure(graph.name, "lookupTransforms(" + links.length + ")", new Operation() {
+            void run(int i) {
+                int q = i & (queries - 1);
+                listener.lookupTransforms(links[0], links, stamps[q], linkTransforms);
+            }
+        });
+        final LinkedList<TransformStorage> inverse = new LinkedList<TransformStorage>();
+        final LinkedList<TransformStorage> forward = new LinkedList<TransformStorage>();
+        measure(graph.name, "lookupLists", new Operation() {
+            void run(int i) {
+                int q = i & (queries - 1);
+                inverse.clear();
+                forward.clear();
+                listener.lookupLists(listener.lookupFrame(targets[q]), listener.lookupFrame(sources[q]), times[q],
+                                     inverse, forward);
+            }
+        });
+        
+        // continue the stream after the filled window, so inserts are measured in steady state
+        final Stream more = new Stream(graph, FILL_SECONDS, FILL_SECONDS + 60);
+        measure(graph.name, "setTransform", new Operation() {
+            void run(int i) {
+                more.insert(listener, i % more.size(), translation, rotation);
+            }
+        });
+    }
+    
+    /**
+     * Checks that lookups through a chain of 10 edges, filled with 100 Hz data, allocate nothing: by handle,
+     * by resolved string IDs and extrapolated past the newest data. Throws IllegalStateException if any of
+     * them allocates more than ALLOCATION_SLACK bytes in OPERATIONS lookups, i.e. if they allocate at all.
+     */
+    static void checkAllocationFree() {
+        if (allocatedBytes() < 0) {
+            System.out.println("allocation check skipped: the JVM does not report allocated bytes");
+            return;
+        }
+        final TfListener listener = new TfListener();
+        Vector3d translation = new Vector3d();
+        Quat4d rotation = new Quat4d();
+        final int hops = 10;
+        for (long t = 0; t < FILL_SECONDS * NANOS_PER_SECOND; t += NANOS_PER_SECOND / 100) {
+            for (int e = 0; e < hops; e++) {
+                double angle = e + t * 1E-9;
+                translation.set(0.1 * e, 0.05, 0.2);
+                rotation.set(0, 0, Math.sin(angle / 2), Math.cos(angle / 2));
+                listener.setTransform("/chain_" + e, "/chain_" + (e + 1), t, translation, rotation, false);
+            }
+        }
+        final String targetID = "/chain_0";
+        final String sourceID = "/chain_" + hops;
+        final int target = listener.getFrameHandle(targetID);
+        final int source = listener.getFrameHandle(sourceID);
+        // distinct times, so the lookups interpolate rather than hit the result cache
+        final int queries = 1024;
+        final long[] times = new long[queries];
+        final Time[] stamps = new Time[queries];
+        final Time[] futureStamps = new Time[queries];
+        Random random = new Random(4);
+        for (int q = 0; q < queries; q++) {
+            times[q] = (long) ((1 + random.nextDouble() * (FILL_SECONDS - 2)) * NANOS_PER_SECOND);
+            stamps[q] = Time.fromNano(times[q]);
+            futureStamps[q] = Time.fromNano(FILL_SECONDS * NANOS_PER_SECOND + times[q] / 10);
+        }
+        final StampedTransform out = StampedTransform.getIdentity();
+        checkAllocationFree("lookupTransform(handle)", new Operation() {
+            void run(int i) {
+                listener.lookupTransform(target, source, times[i & (queries - 1)], out);
+            }
+        });
+        checkAllocationFree("lookupTransform(String)", new Operation() {
+            void run(int i) {
+                listener.lookupTransform(targetID, sourceID, stamps[i & (queries - 1)], out);
+            }
+        });
+        checkAllocationFree("lookupTransform(extrap.)", new Operation() {
+            void run(int i) {
+                listener.lookupTransform(targetID, sourceID, futureStamps[i & (queries - 1)], out);
+            }
+        });
+    }
+    
+    /**
+     * Runs OPERATIONS warm-up operations, then OPERATIONS measured ones, and throws IllegalStateException
+     * if those allocated more than ALLOCATION_SLACK bytes.
+     */
+    static void checkAllocationFree(String benchmark, Operation operation) {
+        for (int i = 0; i < OPERATIONS; i++) {
+            operation.run(i);
+        }
+        // what reading the counter allocates itself
+        long overhead = -allocatedBytes() + allocatedBytes();
+        long bytesBefore = allocatedBytes();
+        for (int i = 0; i < OPERATIONS; i++) {
+            operation.run(OPERATIONS + i);
+        }
+        long bytes = allocatedBytes() - bytesBefore - overhead;
+        if (bytes > ALLOCATION_SLACK) {
+            throw new IllegalStateException(benchmark + " allocated " + bytes + " bytes in " + OPERATIONS
+                                            + " lookups through 10 hops; lookups must not allocate");
+        }
+        System.out.println("allocation check " + benchmark + ": " + bytes + " bytes in " + OPERATIONS + " lookups");
+    }
+    
+    static void benchmarkTimeCache() {
+        final TimeCache cache = new TimeCache(TfListener.MAX_STORAGE_TIME, null, null);
+        final long period = NANOS_PER_SECOND / 100;
+        final TransformStorage[] samples = new TransformStorage[1024];
+        for (int i = 0; i < samples.length; i++) {
+            double angle = i * 0.01;
+            samples[i] = new TransformStorage(new Vector3d(i, 0, 0), new Quat4d(0, 0, Math.sin(angle), Math.cos(angle)),
+                                              0, null, null);
+        }
+        // insert at 100 Hz; after the first 10 seconds, every insert also prunes one sample
+        measure("cache", "TimeCache.insertData", new Operation() {
+            void run(int i) {
+                TransformStorage sample = samples[i & (samples.length - 1)];
+                sample.timeStamp = i * period;
+                cache.insertData(sample);
+            }
+        });
+        final long newest = (2L * OPERATIONS - 1) * period;
+        final double[] out = new double[TimeCache.SAMPLE_SIZE];
+        measure("cache", "TimeCache.getData(out)", new Operation() {
+            void run(int i) {
+                cache.getData(newest - (i % 997) * (period / 3), out, 0);
+            }
+        });
+        measure("cache", "TimeCache.getData", new Operation() {
+            void run(int i) {
+                cache.getData(newest - (i % 997) * (period / 3));
+            }
+        });
+        final TransformStorage t1 = new TransformStorage(new Vector3d(0, 0, 0), new Quat4d(0, 0, 0, 1), 0, null, null);
+        final TransformStorage t2 = new TransformStorage(new Vector3d(1, 2, 3), new Quat4d(0, 0, 0.7071, 0.7071),
+                                                         period, null, null);
+        measure("cache", "TransformStorage.interp", new Operation() {
+            void run(int i) {
+                TransformStorage.interpolate(t1, t2, i % period);
+            }
+        });
+    }
+    
+    /**
+     * Runs OPERATIONS warm-up operations, then measures OPERATIONS operations one by one and prints the
+     * statistics.
+     */
+    static void measure(String graph, String benchmark, Operation operation) {
+        for (int i = 0; i < OPERATIONS; i++) {
+            operation.run(i);
+        }
+        long[] latencies = new long[OPERATIONS];
+        long bytesBefore = allocatedBytes();
+        for (int i = 0; i < OPERATIONS; i++) {
+            long start = System.nanoTime();
+            operation.run(OPERATIONS + i);
+            latencies[i] = System.nanoTime() - start;
+        }
+        long bytesAfter = allocatedBytes();
+        
+        long total = 0;
+        for (long latency : latencies) {
+            total += latency;
+        }
+        Arrays.sort(latencies);
+        double bytesPerOp = (bytesBefore < 0) ? -1 : (double) (bytesAfter - bytesBefore) / OPERATIONS;
+        System.out.printf("%-10s %-24s %10.1f %10d %10d %10d %10.1f%n", graph, benchmark,
+                          (double) total / OPERATIONS, latencies[OPERATIONS / 2],
+                          latencies[(int) (OPERATIONS * 0.99)], latencies[(int) (OPERATIONS * 0.999)], bytesPerOp);
+    }
+    
+    /**
+     * Returns the number of bytes allocated by the current thread, or -1 if the JVM does not report it.
+     */
+    static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+    
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2011, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Willow Garage, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package ros.android.views;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import ros.android.util.SdCardSetup;
+import android.util.Log;
+
+/**
+ * Cache of the last map seen from each robot, kept on the sdcard so that a map can be shown as soon as
+ * an app starts, before the map has been fetched again. Each key, such as the master URI and map topic,
+ * has one file holding the map geometry and its tile pyramid, which is memory mapped to be read and
+ * written.
+ * 
+ * A file starts with a header: a magic number, the width and height of the map, its resolution and
+ * origin, a CRC32 checksum of the cells of all levels and the key in UTF-8, preceded by its length. The
+ * levels of the pyramid follow, as written by MapTiles.write(). Files are written to a temporary file
+ * first and renamed, so a file is either complete or absent; a file whose checksum does not match is
+ * ignored.
+ */
+public class MapCache {
+	private static final int MAGIC = 0x524d4332; // "RMC2", files of version 1 only had a checksum of level 0
+	private static final int CHECKSUM_OFFSET = 24;
+	private static final int KEY_OFFSET = 32;
+
+	/**
+	 * A map read from the cache.
+	 */
+	public static class Entry {
+		public final MapTiles tiles;
+		public final float resolution;
+		public final float originX;
+		public final float originY;
+
+		Entry(MapTiles tiles, float resolution, float originX, float originY) {
+			this.tiles = tiles;
+			this.resolution = resolution;
+			this.originX = originX;
+			this.originY = originY;
+		}
+	}
+
+	private final File dir;
+
+	/**
+	 * Keeps the cache files in dir, which is created when the first file is saved.
+	 */
+	public MapCache(File dir) {
+		this.dir = dir;
+	}
+
+	/**
+	 * Returns the cache in the map_cache directory of the ros directory of the sdcard, or null if the
+	 * sdcard is not ready.
+	 */
+	public static MapCache open() {
+		if(!SdCardSetup.isReady()) {
+			return null;
+		}
+		return new MapCache(new File(SdCardSetup.getRosDir(), "map_cache"));
+	}
+
+	private File getFile(String key) {
+		return new File(dir, "map_" + Integer.toHexString(key.hashCode()) + ".cache");
+	}
+
+	private static byte[] encode(String key) {
+		try {
+			return key.getBytes("UTF-8");
+		} catch(UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Returns the map saved for key, with its tiles drawing with converter, or null if there is none or
+	 * its file is not valid.
+	 */
+	public Entry load(String key, OccupancyGridConverter converter) {
+		File file = getFile(key);
+		if(!file.exists()) {
+			return null;
+		}
+		try {
+			RandomAccessFile in = new RandomAccessFile(file, "r");
+			MappedByteBuffer buffer;
+			try {
+				if(in.length() > Integer.MAX_VALUE) {
+					Log.i("MapCache", "Ignoring invalid map cache " + file);
+					return null;
+				}
+				buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+			} finally {
+				in.close();
+			}
+			byte[] keyBytes = encode(key);
+			if(buffer.capacity() < KEY_OFFSET + 4 || buffer.getInt(0) != MAGIC || buffer.getInt(KEY_OFFSET) != keyBytes.length
+					|| buffer.capacity() < KEY_OFFSET + 4 + keyBytes.length) {
+				Log.i("MapCache", "Ignoring invalid map cache " + file);
+				return null;
+			}
+			byte[] fileKey = new byte[keyBytes.length];
+			buffer.position(KEY_OFFSET + 4);
+			buffer.get(fileKey);
+			if(!Arrays.equals(keyBytes, fileKey)) {
+				Log.i("MapCache", "Map cache " + file + " is for another key");
+				return null;
+			}
+			// the size is not covered by the checksum: check it fits the file before allocating anything
+			int width = buffer.getInt(4);
+			int height = buffer.getInt(8);
+			if(width < 1 || height < 1 || MapTiles.getByteCount(width, height) != buffer.remaining()) {
+				Log.i("MapCache", "Ignoring map cache " + file + " of the wrong size");
+				return null;
+			}
+			MapTiles tiles = MapTiles.read(buffer, width, height, converter);
+			if(tiles == null || tiles.checksum() != buffer.getLong(CHECKSUM_OFFSET)) {
+				Log.i("MapCache", "Ignoring corrupt map cache " + file);
+				return null;
+			}
+			return new Entry(tiles, buffer.getFloat(12), buffer.getFloat(16), buffer.getFloat(20));
+		} catch(IOException e) {
+			Log.e("MapCache", "Could not read map cache " + file + ": " + e.toString());
+			return null;
+		}
+	}
+
+	/**
+	 * Saves tiles for key, with the given resolution and origin, replacing the map saved before.
+	 */
+	public void save(String key, MapTiles tiles, float resolution, float originX, float originY) throws IOException {
+		if(!dir.exists() && !dir.mkdirs()) {
+			throw new IOException("Could not create " + dir);
+		}
+		File file = getFile(key);
+		File temporary = new File(dir, file.getName() + ".tmp");
+		byte[] keyBytes = encode(key);
+		long size = KEY_OFFSET + 4 + keyBytes.length + tiles.getByteCount();
+		if(size > Integer.MAX_VALUE) {
+			throw new IOException("Map is too large to cache");
+		}
+		RandomAccessFile out = new RandomAccessFile(temporary, "rw");
+		try {
+			out.setLength(size);
+			MappedByteBuffer buffer = out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			buffer.putInt(MAGIC);
+			buffer.putInt(tiles.getWidth());
+			buffer.putInt(tiles.getHeight());
+			buffer.putFloat(resolution);
+			buffer.putFloat(originX);
+			buffer.putFloat(originY);
+			buffer.putLong(0); // checksum, once the cells are written
+			buffer.putInt(keyBytes.length);
+			buffer.put(keyBytes);
+			long checksum = tiles.write(buffer);
+			buffer.putLong(CHECKSUM_OFFSET, checksum);
+			buffer.force();
+		} finally {
+			out.close();
+		}
+		if(!temporary.renameTo(file)) {
+			file.delete();
+			if(!temporary.renameTo(file)) {
+				temporary.delete();
+				throw new IOException("Could not rename " + temporary + " to " + file);
+			}
+		}
+	}
+}
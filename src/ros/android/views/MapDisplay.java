@@ -29,13 +29,19 @@
 
 package ros.android.views;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 
+import map_msgs.OccupancyGridUpdate;
 import nav_msgs.GetMapRequest;
 import nav_msgs.GetMapResponse;
 import nav_msgs.OccupancyGrid;
 
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.ros.exception.RemoteException;
 import org.ros.exception.RosException;
 import org.ros.message.MessageListener;
@@ -44,9 +50,7 @@ import org.ros.node.service.ServiceClient;
 import org.ros.node.service.ServiceResponseListener;
 import org.ros.node.topic.Subscriber;
 
-import android.graphics.Bitmap;
 import android.graphics.Canvas;
-import android.graphics.Color;
 import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.util.Log;
@@ -56,7 +60,8 @@ import android.util.Log;
  */
 public class MapDisplay extends PanZoomDisplay {
 	private Subscriber<OccupancyGrid> mapSubscriber;
-	private Bitmap mapBitmap, backgroundBitmap;
+	private volatile MapTiles mapTiles;
+	private MapTiles drawnTiles; // tiles drawn last, only used in the UI thread
 	private Matrix mapGridRelMap = new Matrix(); // from map metadata
 	private Paint paint = new Paint();
 	private String mapTopic = "map";
@@ -64,6 +69,25 @@ public class MapDisplay extends PanZoomDisplay {
 	private ReentrantLock mapLock = new ReentrantLock();
 	private ArrayList<MapDisplayStateCallback> callbacks = new ArrayList();
 	private ConnectedNode node;
+	private OccupancyGridConverter converter = new OccupancyGridConverter();
+	private float mapResolution, mapOriginX, mapOriginY; // geometry of mapTiles
+	private byte[] incomingCells; // cells of a map of the same geometry, to compare
+	private Subscriber<OccupancyGridUpdate> mapUpdatesSubscriber;
+	private String mapUpdatesTopic = null;
+	private byte[] updateCells; // cells of the last map update, reused
+	private volatile MapUpdateWorker mapUpdateWorker;
+	private final AtomicReference<OccupancyGrid> pendingMap = new AtomicReference<OccupancyGrid>();
+	private final AtomicLong mapsReceived = new AtomicLong();
+	private final AtomicLong mapsSkipped = new AtomicLong();
+	private final AtomicLong mapsRendered = new AtomicLong();
+	private final AtomicLong mapsEmpty = new AtomicLong();
+	private final AtomicLong conversionNanos = new AtomicLong();
+	private volatile long lastConversionNanos;
+	private volatile boolean cacheEnabled = true;
+	private volatile String cacheKey = null;
+	private volatile boolean cacheStale; // shown map changed since it was cached
+	/** Minimum time between saving changed maps to the cache, except when stopping */
+	private static final long CACHE_SAVE_INTERVAL_MS = 30000;
 
 	public enum State {
 		STATE_STARTING, STATE_NEED_MAP, STATE_LOADING, STATE_WORKING, STATE_UNKNOWN
@@ -97,84 +121,291 @@ public class MapDisplay extends PanZoomDisplay {
 		return state;
 	}
 
-	private class MapUpdateThread extends Thread {
-		private OccupancyGrid msg;
-		private MapDisplay parent;
+	/**
+	 * Single thread which processes the maps posted to the pendingMap
+	 * mailbox, newest first: a map that is still pending when a newer
+	 * one arrives is skipped, and a map being processed when a newer one
+	 * arrives is abandoned.
+	 *
+	 * If it has a cache key, the worker first shows the map cached for
+	 * it, if any, and saves the shown map to the cache when it changes.
+	 */
+	private class MapUpdateWorker extends Thread implements MapTiles.Canceller {
+		private volatile boolean running = true;
+		private final String cacheKey;
+		private MapCache cache;
+		private long lastSave;
+
+		public MapUpdateWorker(String cacheKey) {
+			super("map_update");
+			setDaemon(true);
+			this.cacheKey = cacheKey;
+		}
 
-		public MapUpdateThread(MapDisplay parent, final OccupancyGrid msg) {
-			this.msg = msg;
-			this.parent = parent;
+		/** Lets the worker exit after the map it is processing. */
+		public void shutdown() {
+			running = false;
+			LockSupport.unpark(this);
 		}
 
-		/**
-		 * Populate view with new map data. This must be called in the UI
-		 * thread.
-		 */
+		@Override
+		public boolean isCancelled() {
+			return !running || pendingMap.get() != null;
+		}
+
+		@Override
 		public void run() {
-			if(msg.getInfo().getHeight() < 1 && msg.getInfo().getWidth() < 1) {
+			if(cacheKey != null) {
+				cache = MapCache.open();
+				if(cache != null) {
+					try {
+						loadCachedMap(cache, cacheKey, this);
+					} catch(RuntimeException e) {
+						Log.e("MapDisplay", "Could not load cached map: " + e.toString());
+					} catch(OutOfMemoryError e) {
+						Log.e("MapDisplay", "Could not load cached map: " + e.toString());
+					}
+				}
+			}
+			while(running) {
+				OccupancyGrid msg = pendingMap.getAndSet(null);
+				if(msg == null) {
+					LockSupport.park(this);
+					continue;
+				}
+				// a failure costs this map, not the worker: keep going with the next one
+				try {
+					processMap(msg);
+				} catch(RuntimeException e) {
+					Log.e("MapDisplay", "Could not process map: " + e.toString());
+					mapsSkipped.incrementAndGet();
+				} catch(OutOfMemoryError e) {
+					Log.e("MapDisplay", "Could not process map: " + e.toString());
+					mapsSkipped.incrementAndGet();
+				}
+			}
+			if(cacheStale) {
+				trySaveCachedMap();
+			}
+		}
+
+		/** Saves the map to the cache, logging rather than throwing on failure. */
+		private void trySaveCachedMap() {
+			try {
+				saveCachedMap();
+			} catch(RuntimeException e) {
+				Log.e("MapDisplay", "Could not save map to cache: " + e.toString());
+			} catch(OutOfMemoryError e) {
+				Log.e("MapDisplay", "Could not save map to cache: " + e.toString());
+			}
+		}
+
+		private void processMap(OccupancyGrid msg) {
+			if(msg.getInfo().getHeight() < 1 || msg.getInfo().getWidth() < 1) {
 				Log.e("MapDisplay", "Map message has no data.");
+				mapsEmpty.incrementAndGet();
 				return;
 			}
-			if(MapDisplay.this.getState() != MapDisplay.State.STATE_WORKING) {
-				Log.i("MapDisplay", "Loading");
-				MapDisplay.this.setState(MapDisplay.State.STATE_LOADING);
+			long start = System.nanoTime();
+			if(handleMap(msg, this)) {
+				long nanos = System.nanoTime() - start;
+				mapsRendered.incrementAndGet();
+				conversionNanos.addAndGet(nanos);
+				lastConversionNanos = nanos;
+				if(cacheStale && System.currentTimeMillis() - lastSave >= CACHE_SAVE_INTERVAL_MS) {
+					trySaveCachedMap();
+				}
 			} else {
-				Log.i("MapDisplay", "Already started, not setting state");
+				mapsSkipped.incrementAndGet();
 			}
-			Log.i("MapDisplay", "handleMap() - locking thread");
-			parent.mapLock.lock();
-			Log.i("MapDisplay", "handleMap() - " + msg.getInfo().getHeight() + " by " + msg.getInfo().getWidth());
-			if(parent.backgroundBitmap != null && (parent.backgroundBitmap.getWidth() != (int) msg.getInfo().getWidth() || parent.backgroundBitmap.getHeight() != (int) msg.getInfo().getHeight())) {
-				Log.i("MapDisplay", "Recycle map");
-				parent.backgroundBitmap.recycle();
-				parent.backgroundBitmap = null;
+		}
+
+		private void saveCachedMap() {
+			if(cache == null) {
+				return;
+			}
+			MapTiles tiles;
+			float res, originX, originY;
+			mapLock.lock();
+			try {
+				tiles = mapTiles;
+				res = mapResolution;
+				originX = mapOriginX;
+				originY = mapOriginY;
+				cacheStale = false;
+			} finally {
+				mapLock.unlock();
+			}
+			if(tiles == null) {
+				return;
 			}
-			if(parent.backgroundBitmap == null) {
-				parent.backgroundBitmap = Bitmap.createBitmap((int) msg.getInfo().getWidth(), (int) msg.getInfo().getHeight(), Bitmap.Config.RGB_565);
-				Log.i("MapDisplay", "Create map");
+			lastSave = System.currentTimeMillis();
+			try {
+				cache.save(cacheKey, tiles, res, originX, originY);
+				Log.i("MapDisplay", "Saved map to cache in " + (System.currentTimeMillis() - lastSave) + " ms");
+			} catch(IOException e) {
+				Log.e("MapDisplay", "Could not save map to cache: " + e.toString());
 			}
+		}
+	}
 
-			// copy the map data into the mapBitmap.
-			int data_i = 0;
-
-			int black = Color.rgb(0, 0, 0);
-			int grey = Color.rgb(128, 128, 128);
-			int white = Color.rgb(255, 255, 255);
-			for(int y = 0; y < msg.getInfo().getHeight(); y++) {
-				for(int x = 0; x < msg.getInfo().getWidth(); x++) {
-					int cell = msg.getData().getInt(data_i);
-					data_i++;
-					switch(cell) {
-					case 100:
-						parent.backgroundBitmap.setPixel(x, y, black);
-						break;
-					case 0:
-						parent.backgroundBitmap.setPixel(x, y, white);
-						break;
-					default:
-						parent.backgroundBitmap.setPixel(x, y, grey);
+	/**
+	 * Show the map cached for key, unless a map is already shown or
+	 * canceller is cancelled because a map arrived. Called in the map
+	 * update worker.
+	 */
+	private void loadCachedMap(MapCache cache, String key, MapTiles.Canceller canceller) {
+		long start = System.currentTimeMillis();
+		MapCache.Entry entry = cache.load(key, converter);
+		if(entry == null) {
+			Log.i("MapDisplay", "No cached map");
+			return;
+		}
+		if(canceller.isCancelled()) {
+			Log.i("MapDisplay", "Map arrived, not showing cached map");
+			return;
+		}
+		mapLock.lock();
+		try {
+			if(mapTiles != null) {
+				return;
+			}
+			setMapGeometry(entry.resolution, entry.originX, entry.originY);
+			mapTiles = entry.tiles;
+			haveMap = true;
+			setState(MapDisplay.State.STATE_WORKING);
+		} finally {
+			mapLock.unlock();
+		}
+		Log.i("MapDisplay", "Showing cached map, loaded in " + (System.currentTimeMillis() - start) + " ms");
+		postInvalidate();
+	}
+
+	/**
+	 * Set the resolution and origin of the map cells. Call with mapLock
+	 * held.
+	 */
+	private void setMapGeometry(float res, float originX, float originY) {
+		// This matrix definition presumes the map is flat on the XY plane
+		// and that there is 0 rotation. So just an offset and a scale.
+		mapGridRelMap.setValues(new float[] { res, 0, originX, 0, res, originY, 0, 0, 1 });
+		Log.i("MapDisplay", "mapGridRelMap = " + mapGridRelMap.toString());
+		mapResolution = res;
+		mapOriginX = originX;
+		mapOriginY = originY;
+	}
+
+	/**
+	 * Hand a map to the worker, replacing any map that is still waiting.
+	 */
+	private void postMap(OccupancyGrid msg) {
+		mapsReceived.incrementAndGet();
+		MapUpdateWorker worker = mapUpdateWorker;
+		if(worker == null) {
+			Log.i("MapDisplay", "Map display not started, dropping map");
+			mapsSkipped.incrementAndGet();
+			return;
+		}
+		if(pendingMap.getAndSet(msg) != null) {
+			mapsSkipped.incrementAndGet();
+		}
+		LockSupport.unpark(worker);
+	}
+
+	/**
+	 * Populate view with new map data. Called in the map update worker.
+	 * Returns false if processing was cancelled by canceller, leaving the
+	 * map partly updated for the next map to finish.
+	 */
+	private boolean handleMap(OccupancyGrid msg, MapTiles.Canceller canceller) {
+		if(getState() != MapDisplay.State.STATE_WORKING) {
+			Log.i("MapDisplay", "Loading");
+			setState(MapDisplay.State.STATE_LOADING);
+		} else {
+			Log.i("MapDisplay", "Already started, not setting state");
+		}
+		Log.i("MapDisplay", "handleMap() - locking thread");
+		mapLock.lock();
+		try {
+			Log.i("MapDisplay", "handleMap() - " + msg.getInfo().getHeight() + " by " + msg.getInfo().getWidth());
+			int width = (int) msg.getInfo().getWidth();
+			int height = (int) msg.getInfo().getHeight();
+			float res = msg.getInfo().getResolution();
+			float originX = (float) msg.getInfo().getOrigin().getPosition().getX();
+			float originY = (float) msg.getInfo().getOrigin().getPosition().getY();
+			MapTiles tiles = mapTiles;
+			if(tiles != null && tiles.getWidth() == width && tiles.getHeight() == height && res == mapResolution && originX == mapOriginX && originY == mapOriginY) {
+				// same map geometry: only re-render the tiles that changed.
+				incomingCells = OccupancyGridConverter.readCells(msg, incomingCells);
+				int changed = tiles.updateChanged(incomingCells, canceller);
+				if(changed < 0) {
+					// the tiles patched before the cancel already differ from the cached map
+					if(changed < -1) {
+						cacheStale = true;
 					}
+					Log.i("MapDisplay", "Newer map arrived, cancelled after " + (-1 - changed) + " tiles changed");
+					return false;
+				}
+				Log.i("MapDisplay", changed + " tiles changed");
+				if(changed > 0) {
+					cacheStale = true;
+				}
+			} else {
+				// copy the map data into a new tile pyramid; the tile bitmaps
+				// are converted when they are first drawn.
+				tiles = MapTiles.build(OccupancyGridConverter.readCells(msg, null), width, height, converter, canceller);
+				if(tiles == null) {
+					Log.i("MapDisplay", "Newer map arrived, cancelled");
+					return false;
 				}
+				Log.i("MapDisplay", "Map has " + tiles.getLevelCount() + " levels");
+				setMapGeometry(res, originX, originY);
+				mapTiles = tiles;
+				cacheStale = true;
 			}
+			haveMap = true;
+			Log.i("MapDisplay", "Done");
+			setState(MapDisplay.State.STATE_WORKING);
+		} finally {
+			mapLock.unlock();
+		}
 
-			// This matrix definition presumes the map is flat on the XY plane
-			// and that there is 0 rotation. So just an offset and a scale.
-			float res = msg.getInfo().getResolution();
-			parent.mapGridRelMap.setValues(new float[] { res, 0, (float) msg.getInfo().getOrigin().getPosition().getX(), 0, res, (float) msg.getInfo().getOrigin().getPosition().getY(), 0, 0, 1 });
-			Log.i("MapDisplay", "mapGridRelMap = " + parent.mapGridRelMap.toString());
+		postInvalidate();
+		return true;
+	}
 
-			Bitmap temp = parent.backgroundBitmap;
-			parent.backgroundBitmap = parent.mapBitmap;
-			parent.mapBitmap = temp;
-			parent.haveMap = true;
-			Log.i("MapDisplay", "Done");
-			MapDisplay.this.setState(MapDisplay.State.STATE_WORKING);
+	/** Number of maps received from the map topic and the map service. */
+	public long getMapsReceived() {
+		return mapsReceived.get();
+	}
+
+	/**
+	 * Number of maps that were not rendered because a newer map replaced
+	 * them, either while waiting or while being processed, or because
+	 * processing them failed.
+	 */
+	public long getMapsSkipped() {
+		return mapsSkipped.get();
+	}
 
-			parent.mapLock.unlock();
+	/** Number of maps ignored because they had no data. */
+	public long getMapsEmpty() {
+		return mapsEmpty.get();
+	}
 
-			parent.postInvalidate();
+	/** Number of maps rendered. */
+	public long getMapsRendered() {
+		return mapsRendered.get();
+	}
 
-		}
+	/** Total time spent processing the rendered maps, in nanoseconds. */
+	public long getConversionNanos() {
+		return conversionNanos.get();
+	}
+
+	/** Time spent processing the last rendered map, in nanoseconds. */
+	public long getLastConversionNanos() {
+		return lastConversionNanos;
 	}
 
 	/**
@@ -188,6 +419,88 @@ public class MapDisplay extends PanZoomDisplay {
 		return mapTopic;
 	}
 
+	/**
+	 * Set the topic name for partial map updates. Defaults to the map
+	 * topic followed by "_updates".
+	 */
+	public void setUpdatesTopic(String mapUpdatesTopic) {
+		this.mapUpdatesTopic = mapUpdatesTopic;
+	}
+
+	public String getUpdatesTopic() {
+		return mapUpdatesTopic != null ? mapUpdatesTopic : mapTopic + "_updates";
+	}
+
+	/**
+	 * Patch the rectangle of the current map covered by update. Updates
+	 * that arrive before the first full map are ignored.
+	 */
+	private void handleMapUpdate(OccupancyGridUpdate update) {
+		mapLock.lock();
+		try {
+			MapTiles tiles = mapTiles;
+			if(tiles == null) {
+				Log.i("MapDisplay", "Ignoring map update without a map");
+				return;
+			}
+			int width = (int) update.getWidth();
+			int height = (int) update.getHeight();
+			if(width <= 0 || height <= 0) {
+				return;
+			}
+			if(updateCells == null || updateCells.length < width * height) {
+				updateCells = new byte[width * height];
+			}
+			ChannelBuffer data = update.getData();
+			data.getBytes(data.readerIndex(), updateCells, 0, Math.min(width * height, data.readableBytes()));
+			tiles.update(updateCells, 0, width, update.getX(), update.getY(), width, height);
+			cacheStale = true;
+		} finally {
+			mapLock.unlock();
+		}
+		postInvalidate();
+	}
+
+	/**
+	 * Show the last map seen for the same robot and map topic from a
+	 * cache on the sdcard while the map is being fetched. Enabled by
+	 * default; takes effect on the next start().
+	 */
+	public void setCacheEnabled(boolean cacheEnabled) {
+		this.cacheEnabled = cacheEnabled;
+	}
+
+	public boolean isCacheEnabled() {
+		return cacheEnabled;
+	}
+
+	/**
+	 * Set the key which identifies the robot in the map cache. Defaults
+	 * to the master URI.
+	 */
+	public void setCacheKey(String cacheKey) {
+		this.cacheKey = cacheKey;
+	}
+
+	public String getCacheKey() {
+		return cacheKey;
+	}
+
+	/**
+	 * Show occupancy probabilities as shades of grey instead of just
+	 * occupied, free and unknown.
+	 */
+	public void setShaded(boolean shaded) {
+		mapLock.lock();
+		converter.setShaded(shaded);
+		MapTiles tiles = mapTiles;
+		if(tiles != null) {
+			tiles.invalidate();
+		}
+		mapLock.unlock();
+		postInvalidate();
+	}
+
 	public void refreshMap() {
 		refreshMap(false);
 	}
@@ -198,7 +511,7 @@ public class MapDisplay extends PanZoomDisplay {
 			client.call((GetMapRequest) node.getTopicMessageFactory().newFromType(GetMapRequest._TYPE), new ServiceResponseListener<GetMapResponse>() {
 				@Override
 				public void onSuccess(GetMapResponse message) {
-					new MapUpdateThread(MapDisplay.this, message.getMap()).start();
+					postMap(message.getMap());
 				}
 
 				@Override
@@ -222,8 +535,14 @@ public class MapDisplay extends PanZoomDisplay {
 	@Override
 	public void start(ConnectedNode node) throws RosException {
 		this.node = node;
+		setState(State.STATE_STARTING);
+		String key = null;
+		if(cacheEnabled) {
+			key = (cacheKey != null ? cacheKey : String.valueOf(node.getMasterUri())) + " " + mapTopic;
+		}
+		mapUpdateWorker = new MapUpdateWorker(key);
+		mapUpdateWorker.start();
 		try {
-			setState(State.STATE_STARTING);
 			Log.i("MapDisplay", "Waiting for map");
 			refreshMap(true);
 		} catch(Exception e) {
@@ -236,7 +555,14 @@ public class MapDisplay extends PanZoomDisplay {
 			@Override
 			public void onNewMessage(final OccupancyGrid msg) {
 				Log.i("MapDisplay", "Map recieved");
-				new MapUpdateThread(MapDisplay.this, msg).start();
+				postMap(msg);
+			}
+		});
+		mapUpdatesSubscriber = node.newSubscriber(getUpdatesTopic(), "map_msgs/OccupancyGridUpdate");
+		mapUpdatesSubscriber.addMessageListener(new MessageListener<OccupancyGridUpdate>() {
+			@Override
+			public void onNewMessage(final OccupancyGridUpdate update) {
+				handleMapUpdate(update);
 			}
 		});
 		Log.i("MapDisplay", "Map display started");
@@ -248,16 +574,30 @@ public class MapDisplay extends PanZoomDisplay {
 			mapSubscriber.shutdown();
 		}
 		mapSubscriber = null;
+		if(mapUpdatesSubscriber != null) {
+			mapUpdatesSubscriber.shutdown();
+		}
+		mapUpdatesSubscriber = null;
+		if(mapUpdateWorker != null) {
+			mapUpdateWorker.shutdown();
+		}
+		mapUpdateWorker = null;
+		pendingMap.set(null);
 		state = State.STATE_UNKNOWN;
 		node = null;
 	}
 
 	@Override
 	public void draw(Canvas canvas) {
-		Bitmap localMapBitmap = mapBitmap; // avoids race conditions
+		MapTiles localMapTiles = mapTiles; // avoids race conditions
 		// Log.i("MapDisplay", "Display map");
-		if(localMapBitmap != null && haveMap) {
-			canvas.drawBitmap(localMapBitmap, mapGridRelMap, paint);
+		if(drawnTiles != null && drawnTiles != localMapTiles) {
+			// the bitmaps of the previous map are no longer drawn
+			drawnTiles.recycle();
+		}
+		drawnTiles = localMapTiles;
+		if(localMapTiles != null && haveMap) {
+			localMapTiles.draw(canvas, mapGridRelMap, paint);
 		}
 	}
 }
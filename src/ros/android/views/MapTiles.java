@@ -0,0 +1,557 @@
+/*
+ * Copyright (c) 2011, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Willow Garage, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package ros.android.views;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+/**
+ * Occupancy grid map split into square tiles, with a mipmap pyramid for drawing it zoomed out. Level 0
+ * holds the cells of the map; every further level halves the resolution, down to a level that fits in
+ * a single tile. A cell of a coarser level is the highest occupancy of the known cells it covers, or
+ * unknown if none is known, so that thin walls do not disappear when zooming out.
+ * 
+ * Only the cells are kept for all levels. Tile bitmaps are converted from them when a tile is first
+ * drawn, and are recycled least recently used first, so the memory for bitmaps is bounded no matter how
+ * large the map is. Each frame draws only the tiles that intersect the view, at the level that has
+ * about one cell per screen pixel.
+ * 
+ * Tiles are drawn in the UI thread; the cells may be changed from another thread with update() and
+ * updateChanged(), which only convert again the tiles that changed.
+ */
+public class MapTiles {
+	/** Width and height of a tile, in cells */
+	public static final int TILE_SIZE = 256;
+	/** Number of tile bitmaps kept before the least recently used ones are reused */
+	private static final int MAX_BITMAPS = 64;
+	/** Number of cells write() and checksum() copy at a time while holding the lock */
+	private static final int COPY_CHUNK = 64 * 1024;
+	/** Attempts of write() and checksum() to copy the levels in chunks before holding the lock throughout */
+	private static final int MAX_COPY_ATTEMPTS = 3;
+
+	/**
+	 * Tells long-running operations to stop early, for instance because newer data arrived.
+	 */
+	public interface Canceller {
+		public boolean isCancelled();
+	}
+
+	private static class Tile {
+		Bitmap bitmap;
+		boolean dirty = true;
+		long lastUse;
+	}
+
+	private final int width;
+	private final int height;
+	private final OccupancyGridConverter converter;
+	/** Cells of each level, row by row */
+	private final byte[][] levels;
+	private final int[] levelWidths;
+	private final int[] levelHeights;
+	/** Tiles of each level, row by row; null until drawn */
+	private final Tile[][] tiles;
+	private final int[] tilesX;
+	/** Tiles that have a bitmap */
+	private final ArrayList<Tile> bitmapTiles = new ArrayList<Tile>();
+	/** Number of the current frame, to tell the tiles used by it */
+	private long frame;
+	/** False if building the levels was cancelled */
+	private boolean complete;
+	/** Incremented by every update of the cells, to tell write() and checksum() to start over */
+	private int version;
+
+	// reused by draw()
+	private final Matrix canvasMatrix = new Matrix();
+	private final Matrix gridRelScreen = new Matrix();
+	private final Matrix screenRelGrid = new Matrix();
+	private final RectF visible = new RectF();
+	private final Rect source = new Rect();
+	private final RectF destination = new RectF();
+
+	/**
+	 * Builds the pyramid for the given cells of a width by height map, one byte per cell, row by row. The
+	 * cells array is owned by the MapTiles afterwards. Throws IllegalArgumentException if width or height
+	 * is not positive.
+	 */
+	public MapTiles(byte[] cells, int width, int height, OccupancyGridConverter converter) {
+		this(cells, width, height, converter, null);
+	}
+
+	/**
+	 * Same as the public constructor, but stops building the levels once canceller (if not null) is
+	 * cancelled, leaving complete false.
+	 */
+	private MapTiles(byte[] cells, int width, int height, OccupancyGridConverter converter, Canceller canceller) {
+		if(width < 1 || height < 1) {
+			throw new IllegalArgumentException("Map size " + width + "x" + height + " is not positive");
+		}
+		this.width = width;
+		this.height = height;
+		this.converter = converter;
+		int levelCount = getLevelCount(width, height);
+		levels = new byte[levelCount][];
+		levelWidths = new int[levelCount];
+		levelHeights = new int[levelCount];
+		tiles = new Tile[levelCount][];
+		tilesX = new int[levelCount];
+		levels[0] = cells;
+		for(int level = 0; level < levelCount; level++) {
+			levelWidths[level] = (width + (1 << level) - 1) >> level;
+			levelHeights[level] = (height + (1 << level) - 1) >> level;
+			if(level > 0) {
+				if(canceller != null && canceller.isCancelled()) {
+					return;
+				}
+				levels[level] = new byte[levelWidths[level] * levelHeights[level]];
+				downsample(level, 0, 0, levelWidths[level], levelHeights[level]);
+			}
+			tilesX[level] = (levelWidths[level] + TILE_SIZE - 1) / TILE_SIZE;
+			tiles[level] = new Tile[tilesX[level] * ((levelHeights[level] + TILE_SIZE - 1) / TILE_SIZE)];
+		}
+		complete = true;
+	}
+
+	/**
+	 * Builds the pyramid like the constructor, but returns null if width or height is not positive, or if
+	 * canceller was cancelled before it was complete.
+	 */
+	public static MapTiles build(byte[] cells, int width, int height, OccupancyGridConverter converter, Canceller canceller) {
+		if(width < 1 || height < 1) {
+			return null;
+		}
+		MapTiles tiles = new MapTiles(cells, width, height, converter, canceller);
+		return tiles.complete ? tiles : null;
+	}
+
+	/**
+	 * Reads the pyramid of a width by height map from in, as written by write(), leaving in after it.
+	 * Returns null if width or height is not positive, or if in has fewer bytes left than the pyramid.
+	 */
+	public static MapTiles read(ByteBuffer in, int width, int height, OccupancyGridConverter converter) {
+		if(width < 1 || height < 1 || in.remaining() < getByteCount(width, height)) {
+			return null;
+		}
+		return new MapTiles(in, width, height, converter);
+	}
+
+	private MapTiles(ByteBuffer in, int width, int height, OccupancyGridConverter converter) {
+		this.width = width;
+		this.height = height;
+		this.converter = converter;
+		int levelCount = getLevelCount(width, height);
+		levels = new byte[levelCount][];
+		levelWidths = new int[levelCount];
+		levelHeights = new int[levelCount];
+		tiles = new Tile[levelCount][];
+		tilesX = new int[levelCount];
+		for(int level = 0; level < levelCount; level++) {
+			levelWidths[level] = (width + (1 << level) - 1) >> level;
+			levelHeights[level] = (height + (1 << level) - 1) >> level;
+			levels[level] = new byte[levelWidths[level] * levelHeights[level]];
+			in.get(levels[level]);
+			tilesX[level] = (levelWidths[level] + TILE_SIZE - 1) / TILE_SIZE;
+			tiles[level] = new Tile[tilesX[level] * ((levelHeights[level] + TILE_SIZE - 1) / TILE_SIZE)];
+		}
+		complete = true;
+	}
+
+	/**
+	 * Writes the cells of all levels to out, which must have getByteCount() bytes left, and returns the
+	 * checksum of the cells written, as checksum() does. Like checksum(), this only holds the lock while
+	 * copying a chunk of cells, so it does not keep the map from being drawn.
+	 */
+	public long write(ByteBuffer out) {
+		return copyLevels(out);
+	}
+
+	/**
+	 * Returns a CRC32 checksum of the cells of all levels.
+	 */
+	public long checksum() {
+		return copyLevels(null);
+	}
+
+	/**
+	 * Writes the cells of all levels to out, if not null, and returns their checksum. The cells are copied
+	 * a chunk at a time under the lock, and written and checksummed outside it; if the map is updated in
+	 * between, the copy starts over, so the result is always one consistent state of the map. After
+	 * MAX_COPY_ATTEMPTS the lock is held for the whole copy instead.
+	 */
+	private long copyLevels(ByteBuffer out) {
+		int start = out != null ? out.position() : 0;
+		byte[] chunk = new byte[COPY_CHUNK];
+		for(int attempt = 1; attempt < MAX_COPY_ATTEMPTS; attempt++) {
+			if(out != null) {
+				out.position(start);
+			}
+			CRC32 crc = new CRC32();
+			int startVersion;
+			synchronized(this) {
+				startVersion = version;
+			}
+			boolean consistent = true;
+			for(int level = 0; level < levels.length && consistent; level++) {
+				int length = levels[level].length;
+				for(int offset = 0; offset < length; offset += COPY_CHUNK) {
+					int count = Math.min(COPY_CHUNK, length - offset);
+					synchronized(this) {
+						if(version != startVersion) {
+							consistent = false;
+							break;
+						}
+						System.arraycopy(levels[level], offset, chunk, 0, count);
+					}
+					crc.update(chunk, 0, count);
+					if(out != null) {
+						out.put(chunk, 0, count);
+					}
+				}
+			}
+			if(consistent) {
+				return crc.getValue();
+			}
+		}
+		// the map kept changing while copying: hold the lock throughout
+		synchronized(this) {
+			if(out != null) {
+				out.position(start);
+			}
+			CRC32 crc = new CRC32();
+			for(byte[] cells : levels) {
+				crc.update(cells);
+				if(out != null) {
+					out.put(cells);
+				}
+			}
+			return crc.getValue();
+		}
+	}
+
+	/**
+	 * Number of bytes write() writes.
+	 */
+	public long getByteCount() {
+		return getByteCount(width, height);
+	}
+
+	private static int getLevelCount(int width, int height) {
+		int levelCount = 1;
+		// in long arithmetic, so that the loop ends for any int size
+		while(Math.max(width, height) > ((long) TILE_SIZE << (levelCount - 1))) {
+			levelCount++;
+		}
+		return levelCount;
+	}
+
+	/**
+	 * Number of bytes of the pyramid of a width by height map, which must both be positive.
+	 */
+	static long getByteCount(int width, int height) {
+		long bytes = 0;
+		int levelCount = getLevelCount(width, height);
+		for(int level = 0; level < levelCount; level++) {
+			bytes += (long) ((width + (1L << level) - 1) >> level) * ((height + (1L << level) - 1) >> level);
+		}
+		return bytes;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getLevelCount() {
+		return levels.length;
+	}
+
+	/**
+	 * Computes the cells in the given rectangle of level from the level below.
+	 */
+	private void downsample(int level, int x0, int y0, int w, int h) {
+		byte[] below = levels[level - 1];
+		int belowWidth = levelWidths[level - 1];
+		int belowHeight = levelHeights[level - 1];
+		byte[] cells = levels[level];
+		int levelWidth = levelWidths[level];
+		for(int y = y0; y < y0 + h; y++) {
+			int by = 2 * y;
+			int rows = (by + 1 < belowHeight) ? 2 : 1;
+			for(int x = x0; x < x0 + w; x++) {
+				int bx = 2 * x;
+				int columns = (bx + 1 < belowWidth) ? 2 : 1;
+				int value = -1;
+				for(int i = 0; i < rows; i++) {
+					int row = (by + i) * belowWidth + bx;
+					for(int j = 0; j < columns; j++) {
+						int cell = below[row + j];
+						// unknown is -1, so any known cell wins over it
+						if(cell > value) {
+							value = cell;
+						}
+					}
+				}
+				cells[y * levelWidth + x] = (byte) value;
+			}
+		}
+	}
+
+	/**
+	 * Copies the w by h cells at srcOffset of src, whose rows are srcStride cells apart, to (x, y) of the
+	 * map, clipped to its bounds, and updates the coarser levels and the tiles covering them. This takes
+	 * time proportional to the number of cells copied.
+	 */
+	public synchronized void update(byte[] src, int srcOffset, int srcStride, int x, int y, int w, int h) {
+		// clip to the map
+		if(x < 0) {
+			srcOffset -= x;
+			w += x;
+			x = 0;
+		}
+		if(y < 0) {
+			srcOffset -= y * srcStride;
+			h += y;
+			y = 0;
+		}
+		w = Math.min(w, width - x);
+		h = Math.min(h, height - y);
+		if(w <= 0 || h <= 0) {
+			return;
+		}
+		version++;
+
+		for(int row = 0; row < h; row++) {
+			System.arraycopy(src, srcOffset + row * srcStride, levels[0], (y + row) * width + x, w);
+		}
+		markDirty(0, x, y, w, h);
+		for(int level = 1; level < levels.length; level++) {
+			int x0 = x >> level;
+			int y0 = y >> level;
+			int x1 = (x + w - 1) >> level;
+			int y1 = (y + h - 1) >> level;
+			downsample(level, x0, y0, x1 - x0 + 1, y1 - y0 + 1);
+			markDirty(level, x0, y0, x1 - x0 + 1, y1 - y0 + 1);
+		}
+	}
+
+	/**
+	 * Replaces the cells of the map by the given ones, of a map of the same size, but only updates the
+	 * tiles of level 0 whose cells changed (and the coarser levels above them); returns the number of
+	 * those tiles. Comparing takes time proportional to the size of the map, converting and drawing only
+	 * to what changed.
+	 */
+	public int updateChanged(byte[] cells) {
+		return updateChanged(cells, null);
+	}
+
+	/**
+	 * Same as updateChanged(byte[]), but stops once canceller (if not null) is cancelled, and then returns
+	 * -1 - n, where n is the number of tiles updated until then; those tiles keep the new cells.
+	 */
+	public int updateChanged(byte[] cells, Canceller canceller) {
+		int changed = 0;
+		int tilesY = tiles[0].length / tilesX[0];
+		for(int ty = 0; ty < tilesY; ty++) {
+			if(canceller != null && canceller.isCancelled()) {
+				return -1 - changed;
+			}
+			for(int tx = 0; tx < tilesX[0]; tx++) {
+				if(updateTileIfChanged(cells, tx, ty)) {
+					changed++;
+				}
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Updates the cells of tile (tx, ty) of level 0 from cells if any of them differ; returns true if so.
+	 */
+	private synchronized boolean updateTileIfChanged(byte[] cells, int tx, int ty) {
+		int x = tx * TILE_SIZE;
+		int y = ty * TILE_SIZE;
+		int w = Math.min(TILE_SIZE, width - x);
+		int h = Math.min(TILE_SIZE, height - y);
+		byte[] current = levels[0];
+		for(int row = y; row < y + h; row++) {
+			int start = row * width + x;
+			for(int i = start; i < start + w; i++) {
+				if(current[i] != cells[i]) {
+					// copy from the first changed row on
+					update(cells, row * width + x, width, x, row, w, y + h - row);
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Marks the tiles of level that intersect the given rectangle of its cells to be converted again.
+	 */
+	private void markDirty(int level, int x, int y, int w, int h) {
+		int tilesY = tiles[level].length / tilesX[level];
+		int lastX = Math.min(tilesX[level] - 1, (x + w - 1) / TILE_SIZE);
+		int lastY = Math.min(tilesY - 1, (y + h - 1) / TILE_SIZE);
+		for(int ty = y / TILE_SIZE; ty <= lastY; ty++) {
+			for(int tx = x / TILE_SIZE; tx <= lastX; tx++) {
+				Tile tile = tiles[level][ty * tilesX[level] + tx];
+				if(tile != null) {
+					tile.dirty = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Marks all tiles to be converted again, for instance after the colors changed.
+	 */
+	public synchronized void invalidate() {
+		for(Tile tile : bitmapTiles) {
+			tile.dirty = true;
+		}
+	}
+
+	/**
+	 * Recycles all tile bitmaps. Call this in the UI thread once the tiles are no longer drawn.
+	 */
+	public synchronized void recycle() {
+		for(Tile tile : bitmapTiles) {
+			tile.bitmap.recycle();
+			tile.bitmap = null;
+			tile.dirty = true;
+		}
+		bitmapTiles.clear();
+	}
+
+	/**
+	 * Draws the tiles that intersect the canvas, at the level matching its scale. gridRelMap maps cells of
+	 * level 0 to map coordinates, and the canvas maps map coordinates to the screen.
+	 */
+	public synchronized void draw(Canvas canvas, Matrix gridRelMap, Paint paint) {
+		frame++;
+
+		// the part of the map that is visible, in cells of level 0, and the number of cells per pixel
+		canvas.getMatrix(canvasMatrix);
+		gridRelScreen.set(canvasMatrix);
+		gridRelScreen.preConcat(gridRelMap);
+		if(!gridRelScreen.invert(screenRelGrid)) {
+			return;
+		}
+		visible.set(0, 0, canvas.getWidth(), canvas.getHeight());
+		screenRelGrid.mapRect(visible);
+		float cellsPerPixel = screenRelGrid.mapRadius(1);
+
+		int level = 0;
+		while(level + 1 < levels.length && (1 << (level + 1)) <= cellsPerPixel) {
+			level++;
+		}
+		int span = TILE_SIZE << level; // cells of level 0 per tile
+		int firstX = Math.max(0, (int) Math.floor(visible.left / span));
+		int lastX = Math.min(tilesX[level] - 1, (int) Math.floor(visible.right / span));
+		int tilesY = tiles[level].length / tilesX[level];
+		int firstY = Math.max(0, (int) Math.floor(visible.top / span));
+		int lastY = Math.min(tilesY - 1, (int) Math.floor(visible.bottom / span));
+
+		canvas.save();
+		canvas.concat(gridRelMap);
+		for(int ty = firstY; ty <= lastY; ty++) {
+			for(int tx = firstX; tx <= lastX; tx++) {
+				Tile tile = getTile(level, tx, ty);
+				int w = Math.min(TILE_SIZE, levelWidths[level] - tx * TILE_SIZE);
+				int h = Math.min(TILE_SIZE, levelHeights[level] - ty * TILE_SIZE);
+				source.set(0, 0, w, h);
+				destination.set(tx * span, ty * span, Math.min(width, tx * span + (w << level)),
+						Math.min(height, ty * span + (h << level)));
+				canvas.drawBitmap(tile.bitmap, source, destination, paint);
+			}
+		}
+		canvas.restore();
+	}
+
+	/**
+	 * Returns the tile at (tx, ty) of level, with an up-to-date bitmap.
+	 */
+	private Tile getTile(int level, int tx, int ty) {
+		int index = ty * tilesX[level] + tx;
+		Tile tile = tiles[level][index];
+		if(tile == null) {
+			tile = new Tile();
+			tiles[level][index] = tile;
+		}
+		tile.lastUse = frame;
+		if(tile.bitmap == null) {
+			tile.bitmap = takeBitmap();
+			tile.dirty = true;
+			bitmapTiles.add(tile);
+		}
+		if(tile.dirty) {
+			int x = tx * TILE_SIZE;
+			int y = ty * TILE_SIZE;
+			converter.convert(levels[level], levelWidths[level], x, y, Math.min(TILE_SIZE, levelWidths[level] - x),
+					Math.min(TILE_SIZE, levelHeights[level] - y), tile.bitmap, 0, 0);
+			tile.dirty = false;
+		}
+		return tile;
+	}
+
+	/**
+	 * Returns a tile bitmap: the bitmap of the least recently used tile if there are enough bitmaps and it
+	 * is not used by the current frame, or else a new one.
+	 */
+	private Bitmap takeBitmap() {
+		if(bitmapTiles.size() >= MAX_BITMAPS) {
+			int oldest = -1;
+			for(int i = 0; i < bitmapTiles.size(); i++) {
+				if(bitmapTiles.get(i).lastUse < frame && (oldest < 0 || bitmapTiles.get(i).lastUse < bitmapTiles.get(oldest).lastUse)) {
+					oldest = i;
+				}
+			}
+			if(oldest >= 0) {
+				Tile tile = bitmapTiles.remove(oldest);
+				Bitmap bitmap = tile.bitmap;
+				tile.bitmap = null;
+				return bitmap;
+			}
+		}
+		return Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.RGB_565);
+	}
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2011, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Willow Garage, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package ros.android.views;
+
+import nav_msgs.OccupancyGrid;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+/**
+ * Converts the cells of an OccupancyGrid to bitmap pixels in bulk. The cells are read from the message as
+ * raw bytes once, mapped to colors through a 256-entry lookup table, and written to the bitmap a band of
+ * rows at a time with Bitmap.setPixels, instead of one setPixel call per cell.
+ * 
+ * A converter reuses its pixel buffer, so it must not be used by more than one thread at a time.
+ */
+public class OccupancyGridConverter {
+	/** Largest number of pixels converted per setPixels call */
+	private static final int BAND_PIXELS = 1 << 16;
+
+	private final int[] colors = new int[256];
+	private int[] pixels = new int[0];
+	private boolean shaded;
+	private int unknownColor = Color.rgb(128, 128, 128);
+
+	public OccupancyGridConverter() {
+		buildColorTable();
+	}
+
+	/**
+	 * If shaded is false (the default), occupied cells (100) are black, free cells (0) white and all others
+	 * grey. If shaded is true, cells with occupancy probabilities between 0 and 100 are shades of grey from
+	 * white to black, and only unknown and invalid cells get the unknown color.
+	 */
+	public void setShaded(boolean shaded) {
+		this.shaded = shaded;
+		buildColorTable();
+	}
+
+	public boolean isShaded() {
+		return shaded;
+	}
+
+	/**
+	 * Sets the color of unknown (-1) and invalid cells. Defaults to grey.
+	 */
+	public void setUnknownColor(int unknownColor) {
+		this.unknownColor = unknownColor;
+		buildColorTable();
+	}
+
+	/**
+	 * Returns the color of a cell with the given value.
+	 */
+	public int getColor(byte cell) {
+		return colors[cell & 0xff];
+	}
+
+	private void buildColorTable() {
+		for(int i = 0; i < colors.length; i++) {
+			colors[i] = unknownColor;
+		}
+		if(shaded) {
+			for(int p = 0; p <= 100; p++) {
+				int level = 255 - (p * 255 + 50) / 100;
+				colors[p] = Color.rgb(level, level, level);
+			}
+		} else {
+			colors[0] = Color.rgb(255, 255, 255);
+			colors[100] = Color.rgb(0, 0, 0);
+		}
+	}
+
+	/**
+	 * Copies the cells of grid, one byte per cell, row by row, into cells if it is large enough, or else into
+	 * a new array, and returns the array holding them. Missing cells of a short message are left unchanged.
+	 */
+	public static byte[] readCells(OccupancyGrid grid, byte[] cells) {
+		int count = (int) grid.getInfo().getWidth() * (int) grid.getInfo().getHeight();
+		if(cells == null || cells.length < count) {
+			cells = new byte[count];
+		}
+		ChannelBuffer data = grid.getData();
+		data.getBytes(data.readerIndex(), cells, 0, Math.min(count, data.readableBytes()));
+		return cells;
+	}
+
+	/**
+	 * Converts the width by height cells at (x, y) of a grid whose rows are stride cells apart, and writes
+	 * them to bitmap at (bitmapX, bitmapY).
+	 */
+	public void convert(byte[] cells, int stride, int x, int y, int width, int height, Bitmap bitmap, int bitmapX, int bitmapY) {
+		if(width <= 0 || height <= 0) {
+			return;
+		}
+		int bandRows = Math.max(1, Math.min(height, BAND_PIXELS / width));
+		if(pixels.length < bandRows * width) {
+			pixels = new int[bandRows * width];
+		}
+		for(int row = 0; row < height; row += bandRows) {
+			int rows = Math.min(bandRows, height - row);
+			for(int i = 0; i < rows; i++) {
+				int src = (y + row + i) * stride + x;
+				int dst = i * width;
+				for(int j = 0; j < width; j++) {
+					pixels[dst + j] = colors[cells[src + j] & 0xff];
+				}
+			}
+			bitmap.setPixels(pixels, 0, width, bitmapX, bitmapY + row, width, rows);
+		}
+	}
+}
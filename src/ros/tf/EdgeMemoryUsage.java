@@ -0,0 +1,90 @@
+/* 
+ * Copyright (c) 2011, Sjoerd van den Dries
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Technische Universiteit Eindhoven nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package ros.tf;
+
+/**
+ * Memory usage of the time cache of one edge of the tf graph, as reported by TfListener.getMemoryUsage().
+ */
+public class EdgeMemoryUsage {
+    
+    /** ID of the parent frame of the edge */
+    public final String parentFrameID;
+    /** ID of the child frame of the edge */
+    public final String childFrameID;
+    /** Whether the edge holds a static transform */
+    public final boolean isStatic;
+    /** Number of transforms stored */
+    public final int sampleCount;
+    /** Number of transforms the buffer can hold */
+    public final int capacity;
+    /** Rate at which transforms were received, in transforms per second */
+    public final double rate;
+    /** Maximum storage time, in nanoseconds */
+    public final long maxStorageTime;
+    
+    /**
+     * Class constructor; takes the current state of the given time cache.
+     */
+    public EdgeMemoryUsage(TimeCache cache) {
+        parentFrameID = cache.getParentFrame().getFrameID();
+        childFrameID = cache.getChildFrame().getFrameID();
+        isStatic = cache instanceof StaticTimeCache;
+        sampleCount = cache.getSampleCount();
+        capacity = cache.getCapacity();
+        rate = cache.getRate();
+        maxStorageTime = cache.getMaxStorageTime();
+    }
+    
+    /**
+     * Returns the number of bytes taken by the stored transforms.
+     */
+    public long getBytes() {
+        return (long) sampleCount * TimeCache.BYTES_PER_SAMPLE;
+    }
+    
+    /**
+     * Returns the number of bytes allocated for the buffer of the time cache.
+     */
+    public long getAllocatedBytes() {
+        return (long) capacity * TimeCache.BYTES_PER_SAMPLE;
+    }
+    
+    /**
+     * Returns a string that contains the values of this report.
+     */
+    @Override
+    public String toString() {
+        return "[" + parentFrameID + " -> " + childFrameID + (isStatic ? " (static)" : "") + ", " + sampleCount
+               + "/" + capacity + " samples, " + getBytes() + " bytes, " + (float) rate + " Hz, "
+               + (maxStorageTime / 1E9) + " s]";
+    }
+    
+}
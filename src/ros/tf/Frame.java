@@ -32,10 +32,14 @@ package ros.tf;
 
 import java.util.HashMap;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Transformation frame, containing references to all parent frames and corresponding time caches.
  * 
+ * The parent map is copy-on-write: adding a parent replaces the map with an updated copy, so readers
+ * can look up and iterate parents from any thread without locking.
+ * 
  * @author Sjoerd van den Dries
  * @version Feb 28, 2011
  */
@@ -43,24 +47,57 @@ public class Frame {
     
     /** ID of this frame. */
     private String frameID;
-    /** Map containing parent frames of this frame with corresponding time caches.*/
-    private HashMap<Frame, TimeCache> parentMap;
+    /** Compact integer handle of this frame, assigned by the TfListener that owns it; -1 if unassigned. */
+    private int handle;
+    /** Map containing parent frames of this frame with corresponding time caches; never modified once published.*/
+    private volatile HashMap<Frame, TimeCache> parentMap;
+    /** Time caches of all parent frames, in insertion order; never modified once published.*/
+    private volatile TimeCache[] parentCaches;
     /** Maximum storage time of time caches in nanoseconds.*/    
-    private long maxStorageTime;
+    private volatile long maxStorageTime;
+    /** Topology version of the graph this frame belongs to, incremented when a parent is added or made static; may be null.*/
+    private AtomicInteger topologyVersion;
     
     /**
      * Class constructor.
      */
     public Frame(String frameID, long maxStorageTime) {
+        this(frameID, maxStorageTime, -1, null);
+    }
+    
+    /**
+     * Class constructor, for a frame with the given handle in a graph with the given topology version,
+     * which is incremented whenever a parent edge is added to this frame or made static.
+     */
+    public Frame(String frameID, long maxStorageTime, int handle, AtomicInteger topologyVersion) {
         this.frameID = frameID;
         this.maxStorageTime = maxStorageTime;
+        this.handle = handle;
+        this.topologyVersion = topologyVersion;
         parentMap = new HashMap<Frame, TimeCache>();
+        parentCaches = new TimeCache[0];
     }
     
     /**
      * Inserts transform newData into the appropriate time cache (based on frame of newData). 
      */
     public boolean insertData(TransformStorage newData) {
+        return insertData(newData, false);
+    }
+    
+    /**
+     * Inserts static transform newData, which is valid at all times, into the appropriate time cache. If the
+     * transformation from the parent frame was not static before, its time cache is replaced by a
+     * StaticTimeCache.
+     */
+    public boolean insertStaticData(TransformStorage newData) {
+        return insertData(newData, true);
+    }
+    
+    /**
+     * Inserts newData into the appropriate time cache, which is made static first if isStatic is set.
+     */
+    private boolean insertData(TransformStorage newData, boolean isStatic) {
         Frame childFrame = newData.getChildFrame();
         
         if (childFrame != this) {
@@ -68,15 +105,58 @@ public class Frame {
             return false;
         }
         
-        Frame parentFrame = newData.getParentFrame();
+        return getOrInsertTimeCache(newData.getParentFrame(), isStatic).insertData(newData);
+    }
+    
+    /**
+     * Returns the time cache for the transformations from parentFrame to this frame, adding it first if it
+     * does not exist yet. If isStatic is set, a time cache that is not static is replaced by a static one.
+     */
+    public TimeCache getOrInsertTimeCache(Frame parentFrame, boolean isStatic) {
         TimeCache cache = parentMap.get(parentFrame);
-        
-        if (cache == null) {
-            cache = new TimeCache(maxStorageTime, parentFrame, childFrame);
-            parentMap.put(parentFrame, cache);
+        if (cache == null || (isStatic && !(cache instanceof StaticTimeCache))) {
+            cache = insertTimeCache(parentFrame, isStatic);
         }
-        
-        return cache.insertData(newData);
+        return cache;
+    }
+    
+    /**
+     * Adds a time cache for the transformations from parentFrame to this frame, unless another writer
+     * added it first, and returns the time cache. If isStatic is set, an existing time cache that is not
+     * static is replaced by a static one.
+     */
+    private synchronized TimeCache insertTimeCache(Frame parentFrame, boolean isStatic) {
+        TimeCache cache = parentMap.get(parentFrame);
+        if (cache == null || (isStatic && !(cache instanceof StaticTimeCache))) {
+            TimeCache oldCache = cache;
+            HashMap<Frame, TimeCache> newParentMap = new HashMap<Frame, TimeCache>(parentMap);
+            if (isStatic) {
+                cache = new StaticTimeCache(parentFrame, this);
+            } else {
+                cache = new TimeCache(maxStorageTime, parentFrame, this);
+            }
+            newParentMap.put(parentFrame, cache);
+            TimeCache[] newParentCaches;
+            if (oldCache == null) {
+                newParentCaches = new TimeCache[parentCaches.length + 1];
+                System.arraycopy(parentCaches, 0, newParentCaches, 0, parentCaches.length);
+                newParentCaches[parentCaches.length] = cache;
+            } else {
+                newParentCaches = parentCaches.clone();
+                for (int i = 0; i < newParentCaches.length; i++) {
+                    if (newParentCaches[i] == oldCache) {
+                        newParentCaches[i] = cache;
+                    }
+                }
+            }
+            parentCaches = newParentCaches;
+            parentMap = newParentMap;
+            if (topologyVersion != null) {
+                // after publishing, so whoever sees the new version also sees the new parent
+                topologyVersion.incrementAndGet();
+            }
+        }
+        return cache;
     }
     
     /**
@@ -96,6 +176,24 @@ public class Frame {
         return cache.getData(time);
     }
     
+    /**
+     * Sets the maximum storage time, in nanoseconds, of the time caches of this frame, including existing
+     * ones, which are pruned accordingly.
+     */
+    public synchronized void setMaxStorageTime(long maxStorageTime) {
+        this.maxStorageTime = maxStorageTime;
+        for (TimeCache cache : parentCaches) {
+            cache.setMaxStorageTime(maxStorageTime);
+        }
+    }
+    
+    /**
+     * Returns the maximum storage time of the time caches of this frame, in nanoseconds.
+     */
+    public long getMaxStorageTime() {
+        return maxStorageTime;
+    }
+    
     /**
      * Returns the ID of this frame.
      */
@@ -103,6 +201,13 @@ public class Frame {
         return frameID;
     }
     
+    /**
+     * Returns the integer handle of this frame, or -1 if it has none.
+     */
+    public int getHandle() {
+        return handle;
+    }
+    
     /**
      * Returns the time cache containing the transformations from sourceFrame to this frame.
      */
@@ -111,10 +216,19 @@ public class Frame {
     }
     
     /**
-     * Returns a set containing references to all parent frames of this frame.
+     * Returns a set containing references to all parent frames of this frame. The set is a snapshot
+     * that is not updated when parents are added, and must not be modified.
      */
     public Set<Frame> getParentFrames() {
         return parentMap.keySet();
     }
     
+    /**
+     * Returns the time caches of all parent frames of this frame. Like getParentFrames(), this is a
+     * snapshot that must not be modified; unlike it, iterating over it does not allocate.
+     */
+    public TimeCache[] getParentCaches() {
+        return parentCaches;
+    }
+    
 }
@@ -0,0 +1,206 @@
+/* 
+ * Copyright (c) 2011, Sjoerd van den Dries
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Technische Universiteit Eindhoven nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package ros.tf;
+
+import org.ros.message.Time;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * Queues stamped messages, such as sensor data, until the transform from their frame to a target frame is
+ * available at their time stamp, and then passes them to a callback.
+ * 
+ * A message is released as soon as TfListener.isTransformAvailable() holds for it, i.e. once all transforms
+ * between its frame and the target frame have data at or after its time stamp, so a lookup of its pose
+ * needs no extrapolation. The filter re-checks the queued messages whenever the TfListener receives new
+ * transforms; released messages are passed to the callback on that thread, in the order they were added.
+ * The queue is bounded: when it is full, the oldest message is dropped.
+ * 
+ * @param <T> type of the messages
+ */
+public class MessageFilter<T> implements TfListener.UpdateListener {
+    
+    /**
+     * Receives the messages released by a MessageFilter.
+     */
+    public interface Callback<T> {
+        /**
+         * Called once the transform from frameID to the target frame of the filter at time stamp is available.
+         */
+        void onMessage(T message, String frameID, Time stamp);
+    }
+    
+    /** Queued message with its frame and time stamp */
+    private static class Entry<T> {
+        final T message;
+        final String frameID;
+        final Time stamp;
+        
+        Entry(T message, String frameID, Time stamp) {
+            this.message = message;
+            this.frameID = frameID;
+            this.stamp = stamp;
+        }
+    }
+    
+    /** Listener that provides the transforms */
+    private final TfListener tf;
+    /** Frame the messages must be transformable to */
+    private volatile String targetFrameID;
+    /** Maximum number of queued messages */
+    private final int queueSize;
+    /** Receives the released messages */
+    private final Callback<T> callback;
+    /** Queued messages, oldest first */
+    private final ArrayDeque<Entry<T>> queue;
+    /** Number of messages passed to the callback */
+    private long releasedCount;
+    /** Number of messages dropped because the queue was full */
+    private long droppedCount;
+    
+    /**
+     * Class constructor. The filter starts listening to tf updates right away; call shutdown() to stop it.
+     */
+    public MessageFilter(TfListener tf, String targetFrameID, int queueSize, Callback<T> callback) {
+        if (queueSize < 1) {
+            throw new IllegalArgumentException("queueSize must be at least 1, not " + queueSize);
+        }
+        this.tf = tf;
+        this.targetFrameID = targetFrameID;
+        this.queueSize = queueSize;
+        this.callback = callback;
+        this.queue = new ArrayDeque<Entry<T>>(queueSize);
+        tf.addUpdateListener(this);
+    }
+    
+    /**
+     * Adds a message in frame frameID with the given time stamp. If its transform is already available, it
+     * is passed to the callback immediately, on the calling thread.
+     */
+    public void add(T message, String frameID, Time stamp) {
+        synchronized (this) {
+            if (queue.size() == queueSize) {
+                queue.removeFirst();
+                droppedCount++;
+            }
+            queue.addLast(new Entry<T>(message, frameID, stamp));
+        }
+        onUpdate();
+    }
+    
+    /**
+     * Releases all queued messages whose transform has become available. Called by the TfListener whenever
+     * it received new transforms.
+     */
+    @Override
+    public void onUpdate() {
+        ArrayList<Entry<T>> released = null;
+        synchronized (this) {
+            if (queue.isEmpty()) {
+                return;
+            }
+            String target = targetFrameID;
+            for (Iterator<Entry<T>> it = queue.iterator(); it.hasNext(); ) {
+                Entry<T> entry = it.next();
+                if (tf.isTransformAvailable(target, entry.frameID, entry.stamp)) {
+                    it.remove();
+                    if (released == null) {
+                        released = new ArrayList<Entry<T>>();
+                    }
+                    released.add(entry);
+                }
+            }
+            if (released != null) {
+                releasedCount += released.size();
+            }
+        }
+        if (released != null) {
+            for (Entry<T> entry : released) {
+                callback.onMessage(entry.message, entry.frameID, entry.stamp);
+            }
+        }
+    }
+    
+    /**
+     * Sets the frame the messages must be transformable to. Queued messages are kept, and are released once
+     * they can be transformed to the new frame.
+     */
+    public void setTargetFrame(String targetFrameID) {
+        this.targetFrameID = targetFrameID;
+        onUpdate();
+    }
+    
+    /**
+     * Returns the frame the messages must be transformable to.
+     */
+    public String getTargetFrame() {
+        return targetFrameID;
+    }
+    
+    /**
+     * Removes all queued messages, without counting them as dropped.
+     */
+    public synchronized void clear() {
+        queue.clear();
+    }
+    
+    /**
+     * Stops listening to tf updates and removes all queued messages.
+     */
+    public void shutdown() {
+        tf.removeUpdateListener(this);
+        clear();
+    }
+    
+    /**
+     * Returns the number of currently queued messages.
+     */
+    public synchronized int getQueuedCount() {
+        return queue.size();
+    }
+    
+    /**
+     * Returns the number of messages that were passed to the callback.
+     */
+    public synchronized long getReleasedCount() {
+        return releasedCount;
+    }
+    
+    /**
+     * Returns the number of messages that were dropped because the queue was full.
+     */
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+    
+}
@@ -0,0 +1,279 @@
+/* 
+ * Copyright (c) 2011, Sjoerd van den Dries
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Technische Universiteit Eindhoven nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package ros.tf;
+
+import javax.vecmath.Matrix4d;
+import javax.vecmath.Quat4d;
+import javax.vecmath.Vector3d;
+
+/**
+ * Rigid transformation represented by a translation vector and a unit rotation quaternion.
+ * 
+ * Compared to a 4x4 matrix, composing two of these takes about a third of the multiplications, inverting
+ * one is closed-form, and the rotation stays orthonormal: the quaternion is renormalized after every
+ * composition, so rounding errors do not accumulate along long chains of frames. All operations work in
+ * place on primitive fields and do not allocate.
+ */
+public class RigidTransform {
+
+    /** Translation */
+    public double tx, ty, tz;
+    /** Rotation quaternion (unit length) */
+    public double qx, qy, qz, qw;
+
+    /**
+     * Class constructor; creates an identity transformation.
+     */
+    public RigidTransform() {
+        qw = 1;
+    }
+
+    /**
+     * Class constructor.
+     */
+    public RigidTransform(Vector3d translation, Quat4d rotation) {
+        set(translation, rotation);
+    }
+
+    /**
+     * Sets this transform to the identity transformation.
+     */
+    public void setIdentity() {
+        tx = ty = tz = 0;
+        qx = qy = qz = 0;
+        qw = 1;
+    }
+
+    /**
+     * Sets the value of this transform to that of t.
+     */
+    public void set(RigidTransform t) {
+        tx = t.tx; ty = t.ty; tz = t.tz;
+        qx = t.qx; qy = t.qy; qz = t.qz; qw = t.qw;
+    }
+
+    /**
+     * Sets this transform to the given translation and rotation; the rotation is normalized.
+     */
+    public void set(Vector3d translation, Quat4d rotation) {
+        set(translation.x, translation.y, translation.z, rotation.x, rotation.y, rotation.z, rotation.w);
+    }
+
+    /**
+     * Sets this transform to the translation and rotation stored as (tx, ty, tz, qx, qy, qz, qw) in values,
+     * starting at offset, which is the layout used by TimeCache; the rotation is normalized.
+     */
+    public void set(double[] values, int offset) {
+        set(values[offset], values[offset + 1], values[offset + 2],
+            values[offset + 3], values[offset + 4], values[offset + 5], values[offset + 6]);
+    }
+
+    /**
+     * Sets this transform to the given translation and rotation; the rotation is normalized.
+     */
+    public void set(double tx, double ty, double tz, double qx, double qy, double qz, double qw) {
+        this.tx = tx; this.ty = ty; this.tz = tz;
+        this.qx = qx; this.qy = qy; this.qz = qz; this.qw = qw;
+        normalize();
+    }
+
+    /**
+     * Sets this transform to the rigid transformation in the upper 3x4 part of matrix m.
+     */
+    public void set(Matrix4d m) {
+        tx = m.m03; ty = m.m13; tz = m.m23;
+        // Shepperd's method: take the square root of the largest of the four candidate diagonals
+        double trace = m.m00 + m.m11 + m.m22;
+        if (trace >= m.m00 && trace >= m.m11 && trace >= m.m22) {
+            double s = 2 * Math.sqrt(1 + trace);
+            qw = 0.25 * s;
+            qx = (m.m21 - m.m12) / s;
+            qy = (m.m02 - m.m20) / s;
+            qz = (m.m10 - m.m01) / s;
+        } else if (m.m00 >= m.m11 && m.m00 >= m.m22) {
+            double s = 2 * Math.sqrt(1 + m.m00 - m.m11 - m.m22);
+            qw = (m.m21 - m.m12) / s;
+            qx = 0.25 * s;
+            qy = (m.m01 + m.m10) / s;
+            qz = (m.m02 + m.m20) / s;
+        } else if (m.m11 >= m.m22) {
+            double s = 2 * Math.sqrt(1 + m.m11 - m.m00 - m.m22);
+            qw = (m.m02 - m.m20) / s;
+            qx = (m.m01 + m.m10) / s;
+            qy = 0.25 * s;
+            qz = (m.m12 + m.m21) / s;
+        } else {
+            double s = 2 * Math.sqrt(1 + m.m22 - m.m00 - m.m11);
+            qw = (m.m10 - m.m01) / s;
+            qx = (m.m02 + m.m20) / s;
+            qy = (m.m12 + m.m21) / s;
+            qz = 0.25 * s;
+        }
+        normalize();
+    }
+
+    /**
+     * Sets the value of this transform to the result of multiplying itself with transform t.
+     */
+    public void mul(RigidTransform t) {
+        mul(this, t);
+    }
+
+    /**
+     * Sets the value of this transform to the result of multiplying t1 with t2, that is, applying t2 first
+     * and t1 second. Either argument may be this transform.
+     */
+    public void mul(RigidTransform t1, RigidTransform t2) {
+        // translation: t1.t + rotate(t1.q, t2.t)
+        double x = t2.tx, y = t2.ty, z = t2.tz;
+        double cx = 2 * (t1.qy * z - t1.qz * y);
+        double cy = 2 * (t1.qz * x - t1.qx * z);
+        double cz = 2 * (t1.qx * y - t1.qy * x);
+        double nx = t1.tx + x + t1.qw * cx + (t1.qy * cz - t1.qz * cy);
+        double ny = t1.ty + y + t1.qw * cy + (t1.qz * cx - t1.qx * cz);
+        double nz = t1.tz + z + t1.qw * cz + (t1.qx * cy - t1.qy * cx);
+
+        // rotation: t1.q * t2.q
+        double w = t1.qw * t2.qw - t1.qx * t2.qx - t1.qy * t2.qy - t1.qz * t2.qz;
+        double i = t1.qw * t2.qx + t1.qx * t2.qw + t1.qy * t2.qz - t1.qz * t2.qy;
+        double j = t1.qw * t2.qy - t1.qx * t2.qz + t1.qy * t2.qw + t1.qz * t2.qx;
+        double k = t1.qw * t2.qz + t1.qx * t2.qy - t1.qy * t2.qx + t1.qz * t2.qw;
+
+        tx = nx; ty = ny; tz = nz;
+        qx = i; qy = j; qz = k; qw = w;
+        normalize();
+    }
+
+    /**
+     * Inverts this transformation in place: the rotation is conjugated, and the translation rotated back
+     * and negated.
+     */
+    public void invert() {
+        qx = -qx; qy = -qy; qz = -qz;
+        double x = tx, y = ty, z = tz;
+        double cx = 2 * (qy * z - qz * y);
+        double cy = 2 * (qz * x - qx * z);
+        double cz = 2 * (qx * y - qy * x);
+        tx = -(x + qw * cx + (qy * cz - qz * cy));
+        ty = -(y + qw * cy + (qz * cx - qx * cz));
+        tz = -(z + qw * cz + (qx * cy - qy * cx));
+    }
+
+    /**
+     * Transforms the point stored as (x, y, z) in in, starting at inOffset, and writes the result to out,
+     * starting at outOffset; in and out may be the same array, at the same offset.
+     */
+    public void transform(double[] in, int inOffset, double[] out, int outOffset) {
+        double x = in[inOffset], y = in[inOffset + 1], z = in[inOffset + 2];
+        // rotate: v + qw * c + q x c, with c = 2 (q x v)
+        double cx = 2 * (qy * z - qz * y);
+        double cy = 2 * (qz * x - qx * z);
+        double cz = 2 * (qx * y - qy * x);
+        out[outOffset]     = tx + x + qw * cx + (qy * cz - qz * cy);
+        out[outOffset + 1] = ty + y + qw * cy + (qz * cx - qx * cz);
+        out[outOffset + 2] = tz + z + qw * cz + (qx * cy - qy * cx);
+    }
+
+    /**
+     * Same as transform(double[], int, double[], int), for points stored as floats; computes in doubles.
+     */
+    public void transform(float[] in, int inOffset, float[] out, int outOffset) {
+        double x = in[inOffset], y = in[inOffset + 1], z = in[inOffset + 2];
+        double cx = 2 * (qy * z - qz * y);
+        double cy = 2 * (qz * x - qx * z);
+        double cz = 2 * (qx * y - qy * x);
+        out[outOffset]     = (float) (tx + x + qw * cx + (qy * cz - qz * cy));
+        out[outOffset + 1] = (float) (ty + y + qw * cy + (qz * cx - qx * cz));
+        out[outOffset + 2] = (float) (tz + z + qw * cz + (qx * cy - qy * cx));
+    }
+
+    /**
+     * Writes the 4x4 matrix representing this transform to m.
+     */
+    public void get(Matrix4d m) {
+        double xx = qx * qx, yy = qy * qy, zz = qz * qz;
+        double xy = qx * qy, xz = qx * qz, yz = qy * qz;
+        double wx = qw * qx, wy = qw * qy, wz = qw * qz;
+        m.m00 = 1 - 2 * (yy + zz); m.m01 = 2 * (xy - wz);     m.m02 = 2 * (xz + wy);     m.m03 = tx;
+        m.m10 = 2 * (xy + wz);     m.m11 = 1 - 2 * (xx + zz); m.m12 = 2 * (yz - wx);     m.m13 = ty;
+        m.m20 = 2 * (xz - wy);     m.m21 = 2 * (yz + wx);     m.m22 = 1 - 2 * (xx + yy); m.m23 = tz;
+        m.m30 = 0;                 m.m31 = 0;                 m.m32 = 0;                 m.m33 = 1;
+    }
+
+    /**
+     * Writes the translation of this transform to out.
+     */
+    public void getTranslation(Vector3d out) {
+        out.set(tx, ty, tz);
+    }
+
+    /**
+     * Writes the rotation of this transform to out.
+     */
+    public void getRotation(Quat4d out) {
+        out.set(qx, qy, qz, qw);
+    }
+
+    /**
+     * Returns true if all components of this transform differ less than epsilon from those of t. Note that
+     * q and -q represent the same rotation, but are not considered equal here.
+     */
+    public boolean epsilonEquals(RigidTransform t, double epsilon) {
+        return Math.abs(tx - t.tx) <= epsilon && Math.abs(ty - t.ty) <= epsilon && Math.abs(tz - t.tz) <= epsilon
+            && Math.abs(qx - t.qx) <= epsilon && Math.abs(qy - t.qy) <= epsilon
+            && Math.abs(qz - t.qz) <= epsilon && Math.abs(qw - t.qw) <= epsilon;
+    }
+
+    /**
+     * Scales the quaternion to unit length; a zero quaternion becomes the identity rotation.
+     */
+    private void normalize() {
+        double norm = qx * qx + qy * qy + qz * qz + qw * qw;
+        if (norm == 1) {
+            return;
+        }
+        if (norm == 0) {
+            qw = 1;
+            return;
+        }
+        double scale = 1 / Math.sqrt(norm);
+        qx *= scale; qy *= scale; qz *= scale; qw *= scale;
+    }
+
+    /**
+     * Returns a string that contains the values of this transform.
+     */
+    @Override
+    public String toString() {
+        return "[(" + tx + ", " + ty + ", " + tz + "), (" + qx + ", " + qy + ", " + qz + ", " + qw + ")]";
+    }
+
+}
@@ -40,7 +40,10 @@ import javax.vecmath.Vector3d;
 /** 
  * Transformation stamped with time, frame ID and child frame ID. 
  *  
- * A transformation object of this class is internally represented by a 4x4 matrix.  
+ * A transformation object of this class is internally represented by a {@link RigidTransform} (translation
+ * vector and rotation quaternion), so that composing and inverting transforms is cheap. The 4x4 matrix is
+ * only computed once it is asked for by {@link #getMatrix4()}. Transforms constructed from a matrix are
+ * represented by that matrix.
  *  
  * @author Sjoerd van den Dries
  * @version Feb 28, 2011
@@ -53,8 +56,14 @@ public class StampedTransform {
     public String childFrameID;
     /** Time stamp */
     public Time timeStamp;
-    /** Transformation matrix representing the transform */ 
+    /** Transformation matrix representing the transform; derived from rigid if rigidValid is set */ 
     protected Matrix4d transform;
+    /** Translation and rotation representing the transform, if rigidValid is set */
+    protected RigidTransform rigid;
+    /** Whether rigid represents this transform; otherwise, transform does */
+    protected boolean rigidValid;
+    /** Whether transform is up to date with rigid */
+    protected boolean matrixValid;
         
     /**
      * Class constructor.
@@ -63,7 +72,8 @@ public class StampedTransform {
         this.childFrameID = childFrameID; 
         this.frameID = frameID;
         this.timeStamp = timeStamp;        
-        this.transform = new Matrix4d(rotation, translation, 1);
+        this.rigid = new RigidTransform(translation, rotation);
+        this.rigidValid = true;
     }
     
     /**
@@ -74,22 +84,37 @@ public class StampedTransform {
         this.frameID = frameID;
         this.timeStamp = timeStamp;
         this.transform = transform;
+        this.matrixValid = true;
+    }
+    
+    /**
+     * Class constructor.
+     */    
+    public StampedTransform(RigidTransform transform, Time timeStamp, String frameID, String childFrameID) {
+        this.childFrameID = childFrameID; 
+        this.frameID = frameID;
+        this.timeStamp = timeStamp;
+        this.rigid = transform;
+        this.rigidValid = true;
     }
     
     /**
      * Returns an identity transformation object.
      */    
     public static StampedTransform getIdentity() {
-        Matrix4d identity = new Matrix4d();
-        identity.setIdentity();        
-        return new StampedTransform(identity, null, null, null);
+        return new StampedTransform(new RigidTransform(), null, null, null);
     }
     
     /**
      * Inverts this transformation in place.
      */    
     public StampedTransform invert() {
-        transform.invert();
+        if (rigidValid) {
+            rigid.invert();
+            matrixValid = false;
+        } else {
+            transform.invert();
+        }
         String mem = this.childFrameID;
         this.childFrameID = frameID;
         this.frameID = mem;
@@ -100,7 +125,12 @@ public class StampedTransform {
      * Sets the value of this transform to the result of multiplying itself with transform t1.
      */
     public void mul(StampedTransform t1) {        
-        this.transform.mul(t1.transform);
+        if (rigidValid && t1.rigidValid) {
+            rigid.mul(t1.rigid);
+            matrixValid = false;
+        } else {
+            getMatrix4().mul(t1.matrix());
+        }
         this.childFrameID = t1.childFrameID;
     }
 
@@ -108,7 +138,22 @@ public class StampedTransform {
      * Sets the value of this transform to the result of multiplying t1 with t2.
      */    
     public void mul(StampedTransform t1, StampedTransform t2) {
-        this.transform.mul(t1.transform, t2.transform);
+        if (t1.rigidValid && t2.rigidValid) {
+            if (rigid == null) {
+                rigid = new RigidTransform();
+            }
+            rigid.mul(t1.rigid, t2.rigid);
+            rigidValid = true;
+            matrixValid = false;
+        } else {
+            Matrix4d m1 = t1.matrix(), m2 = t2.matrix();
+            if (transform == null) {
+                transform = new Matrix4d();
+            }
+            transform.mul(m1, m2);
+            rigidValid = false;
+            matrixValid = true;
+        }
         this.frameID = t1.frameID;
         this.childFrameID = t2.childFrameID;
     }
@@ -117,21 +162,90 @@ public class StampedTransform {
      * Transforms the pose parameter with this transform and places the result into poseOut.
      */    
     public void transformPose(Matrix4d pose, Matrix4d poseOut) {
-        poseOut.mul(getMatrix4(), pose);
+        poseOut.mul(matrix(), pose);
     }
     
     /**
      * Transforms the point parameter with this transform and places the result into pointOut.
      */    
     public void transformPoint(Point3d point, Point3d pointOut) {
-        getMatrix4().transform(point, pointOut);
+        matrix().transform(point, pointOut);
     }
     
     /**
      * Transforms the vector parameter with this transform and places the result into vectorOut.
      */    
     public void transformVector(Vector3d vector, Vector3d vectorOut) {
-        getMatrix4().transform(vector, vectorOut);
+        matrix().transform(vector, vectorOut);
+    }
+    
+    /**
+     * Transforms count points, stored as consecutive (x, y, z) triples in pointsIn, with this transform and
+     * places the results in pointsOut, which may be the same array as pointsIn.
+     */
+    public void transformPoints(double[] pointsIn, double[] pointsOut, int count) {
+        if (rigidValid) {
+            // apply the translation and rotation directly, rather than building the matrix
+            for (int i = 0; i < 3 * count; i += 3) {
+                rigid.transform(pointsIn, i, pointsOut, i);
+            }
+            return;
+        }
+        Matrix4d m = matrix();
+        for (int i = 0; i < 3 * count; i += 3) {
+            double x = pointsIn[i], y = pointsIn[i + 1], z = pointsIn[i + 2];
+            pointsOut[i]     = m.m00 * x + m.m01 * y + m.m02 * z + m.m03;
+            pointsOut[i + 1] = m.m10 * x + m.m11 * y + m.m12 * z + m.m13;
+            pointsOut[i + 2] = m.m20 * x + m.m21 * y + m.m22 * z + m.m23;
+        }
+    }
+    
+    /**
+     * Transforms count points, stored as consecutive (x, y, z) triples in pointsIn, with this transform and
+     * places the results in pointsOut, which may be the same array as pointsIn.
+     */
+    public void transformPoints(float[] pointsIn, float[] pointsOut, int count) {
+        if (rigidValid) {
+            for (int i = 0; i < 3 * count; i += 3) {
+                rigid.transform(pointsIn, i, pointsOut, i);
+            }
+            return;
+        }
+        Matrix4d m = matrix();
+        for (int i = 0; i < 3 * count; i += 3) {
+            double x = pointsIn[i], y = pointsIn[i + 1], z = pointsIn[i + 2];
+            pointsOut[i]     = (float) (m.m00 * x + m.m01 * y + m.m02 * z + m.m03);
+            pointsOut[i + 1] = (float) (m.m10 * x + m.m11 * y + m.m12 * z + m.m13);
+            pointsOut[i + 2] = (float) (m.m20 * x + m.m21 * y + m.m22 * z + m.m23);
+        }
+    }
+    
+    /**
+     * Transforms count points in the XY plane (z = 0), stored as consecutive (x, y) pairs in pointsIn, with
+     * this transform and places the x and y of the results in pointsOut, which may be the same array as
+     * pointsIn. The z of the results is dropped, as when drawing laser scans or paths on a map.
+     */
+    public void transformPoints2D(float[] pointsIn, float[] pointsOut, int count) {
+        double m00, m01, m03, m10, m11, m13;
+        if (rigidValid) {
+            // the upper left 2x2 of the rotation matrix, from the quaternion, rather than building the matrix
+            RigidTransform r = rigid;
+            m00 = 1 - 2 * (r.qy * r.qy + r.qz * r.qz);
+            m01 = 2 * (r.qx * r.qy - r.qw * r.qz);
+            m10 = 2 * (r.qx * r.qy + r.qw * r.qz);
+            m11 = 1 - 2 * (r.qx * r.qx + r.qz * r.qz);
+            m03 = r.tx;
+            m13 = r.ty;
+        } else {
+            Matrix4d m = matrix();
+            m00 = m.m00; m01 = m.m01; m03 = m.m03;
+            m10 = m.m10; m11 = m.m11; m13 = m.m13;
+        }
+        for (int i = 0; i < 2 * count; i += 2) {
+            double x = pointsIn[i], y = pointsIn[i + 1];
+            pointsOut[i]     = (float) (m00 * x + m01 * y + m03);
+            pointsOut[i + 1] = (float) (m10 * x + m11 * y + m13);
+        }
     }
     
     /**
@@ -178,7 +292,7 @@ public class StampedTransform {
      */
     public Vector3d getTranslation() {
         Vector3d out = new Vector3d();
-        transform.get(out);
+        getTranslation(out);
         return out;
     }
     
@@ -186,14 +300,18 @@ public class StampedTransform {
      * Calculates and returns the translational component of this transform in parameter out.
      */
     public void getTranslation(Vector3d out) {
-        transform.get(out);
+        if (rigidValid) {
+            rigid.getTranslation(out);
+        } else {
+            transform.get(out);
+        }
     }    
     /**
      * Calculates and returns the rotational component of this transform.
      */
     public Quat4d getRotation() {
         Quat4d out = new Quat4d();
-        transform.get(out);
+        getRotation(out);
         return out;
     }
     
@@ -201,22 +319,80 @@ public class StampedTransform {
      * Calculates and returns the rotational component of this transform in parameter out.
      */
     public void getRotation(Quat4d out) {
-        transform.get(out);
+        if (rigidValid) {
+            rigid.getRotation(out);
+        } else {
+            transform.get(out);
+        }
+    }
+    
+    /**
+     * Writes the translation and rotation of this transform to out.
+     */
+    public void get(RigidTransform out) {
+        if (rigidValid) {
+            out.set(rigid);
+        } else {
+            out.set(transform);
+        }
     }
     
     /**
-     * Returns the 4x4 matrix representing this transform.
+     * Sets this transform to the given translation and rotation, without changing the frame IDs and
+     * time stamp.
+     */
+    public void set(RigidTransform t) {
+        if (rigid == null) {
+            rigid = new RigidTransform();
+        }
+        rigid.set(t);
+        rigidValid = true;
+        matrixValid = false;
+    }
+    
+    /**
+     * Sets this transform to the identity transform, without changing the frame IDs and time stamp.
+     */
+    public void setIdentity() {
+        if (rigid == null) {
+            rigid = new RigidTransform();
+        }
+        rigid.setIdentity();
+        rigidValid = true;
+        matrixValid = false;
+    }
+    
+    /**
+     * Returns the 4x4 matrix representing this transform. The matrix is computed on the first call after
+     * the transform changed, and from then on represents the transform: changes made to it are reflected
+     * in this transform.
      */
     public Matrix4d getMatrix4() {
-        return transform;
+        Matrix4d m = matrix();
+        rigidValid = false;
+        return m;
     }      
     
+    /**
+     * Returns the 4x4 matrix representing this transform, computing it if needed, for reading only.
+     */
+    private Matrix4d matrix() {
+        if (!matrixValid) {
+            if (transform == null) {
+                transform = new Matrix4d();
+            }
+            rigid.get(transform);
+            matrixValid = true;
+        }
+        return transform;
+    }
+    
     /**
      * Returns a string that contains the values of this transform.
      */    
     @Override
     public String toString() {
-        return "[" + frameID + " -> " + childFrameID + ", " + timeStamp + ", " + getMatrix4() + "]";
+        return "[" + frameID + " -> " + childFrameID + ", " + timeStamp + ", " + matrix() + "]";
     } 
     
 }
@@ -0,0 +1,92 @@
+/* 
+ * Copyright (c) 2011, Sjoerd van den Dries
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Technische Universiteit Eindhoven nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package ros.tf;
+
+/**
+ * Time cache for a static transformation, such as a fixed sensor mount, as published on /tf_static.
+ * 
+ * A static time cache holds only the most recent transformation, which is valid at all times: it is
+ * returned for any time point without interpolation, is never pruned, and its time stamp is ignored.
+ * Inserting new data replaces the stored transformation.
+ */
+public class StaticTimeCache extends TimeCache {
+    
+    /**
+     * Class Constructor.
+     */
+    public StaticTimeCache(Frame parentFrame, Frame childFrame) {
+        super(0, parentFrame, childFrame, 1);
+    }
+    
+    /**
+     * Replaces the transformation in this cache by newData. The epoch is only recorded for the first
+     * transformation; later ones replace it, as for samples with the same time stamp in a TimeCache.
+     */
+    @Override
+    public synchronized boolean insertData(TransformStorage newData, boolean prune, long epoch) {
+        version++; // odd: readers will retry
+        writeSample(0, newData.getTimeStamp(), newData.getTranslation(), newData.getRotation());
+        if (size == 0) {
+            epochs[0] = epoch;
+            size = 1;
+        } else {
+            replaceCount++;
+        }
+        version++; // even: buffer is consistent again
+        return true;
+    }
+    
+    /**
+     * Returns 0, since the transformation in this cache is valid at any time point, or Long.MAX_VALUE
+     * if the cache is empty.
+     */
+    @Override
+    public long timeToNearestTransform(long time) {
+        return size == 0 ? Long.MAX_VALUE : 0;
+    }
+    
+    /**
+     * Returns Long.MAX_VALUE, since the transformation in this cache is valid up to any time point, or
+     * NO_DATA if the cache is empty.
+     */
+    @Override
+    public long getLatestTimeStamp() {
+        return size == 0 ? NO_DATA : Long.MAX_VALUE;
+    }
+    
+    /**
+     * Does nothing; static transformations do not expire.
+     */
+    @Override
+    protected void removeOldData() {
+    }
+    
+}
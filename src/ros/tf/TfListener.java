@@ -45,9 +45,24 @@ import javax.vecmath.Vector3d;
 import javax.vecmath.Point3d;
 import javax.vecmath.Matrix4d;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.PriorityQueue;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Pattern;
 
 /**
  * A client that listens to the /tf topic, stores transforms in a buffer and allows transformation
@@ -56,12 +71,39 @@ import java.util.LinkedList;
  * The listener runs in a seperate thread. All tf messages published on the /tf topic are stored in
  * a buffer, first sorted by child frame, then by parent frame, then by time stamp. This allows fast
  * lookup of transformations. Tf's that are MAX_STORAGE_TIME older than the newest tf in the corresponding
- * time cache are ignored.
+ * time cache are ignored. The storage time can be changed for all frames or per frame pattern, and a memory
+ * budget can be set for all stored transforms together; when it is exceeded, the oldest transforms are
+ * evicted from the edges with the highest rate first. getMemoryUsage() reports the usage per edge.
+ *
+ * The subscribers only queue incoming transforms; a dedicated ingestion worker thread inserts them in batches,
+ * pruning every time cache it touched once per batch, so a high tf rate does not stall the network threads.
+ * Transforms are inserted on the ingestion thread while lookups may run on any number of other threads.
+ * Frames are registered in a concurrent map, parent maps are copy-on-write and every time cache has a
+ * single writer with non-blocking readers, so lookups never wait for ingestion and vice versa.
  *
  * To calculate a transformation from some source frame S to a target frame T at time t, TfListener uses a graph
  * search to find the best path from S to T. At the moment, 'best' means that the largest difference between
  * the time stamps of the transformations on the path and time t is minimized. If the tf graph is a tree, as is
  * the case with original C++-implementation of tf, the graph will simply return the only path available (if any).
+ * Because that is by far the common case, a lookup first walks from both frames up to their lowest common
+ * ancestor, and only falls back to the graph search if it meets a frame that has more than one parent.
+ * Paths found this way are cached per frame pair until the topology of the graph changes, i.e. until a new
+ * parent edge is added, so a repeated lookup only has to interpolate and compose the edges. The composed
+ * results of the most recent lookups of each thread are cached as well, and reused for a lookup of the same
+ * frames at the same time for as long as no edge on the path receives data that would change its result.
+ *
+ * Static transforms, such as fixed sensor mounts, are received on a separate latched topic (/tf_static by
+ * default). They are kept in a StaticTimeCache, which holds a single transform that is valid at all times and
+ * never expires, so publishers do not have to re-broadcast them and lookups through them are a direct read.
+ *
+ * Instead of polling lookupTransform until the tf tree has filled in, callers can use waitForTransform, which
+ * returns a Future that is completed as soon as the transform becomes available. Received transforms are
+ * inserted, and the Future completed, on the tf_ingestion worker thread (or on the thread that calls
+ * setTransform, for transforms inserted directly), so that thread must not be blocked waiting for it.
+ *
+ * Every frame is assigned a compact integer handle when it is first seen. Code that looks up the same frames
+ * repeatedly can resolve their names once with getFrameHandle() and then use the handle-based lookup methods,
+ * which do no string resolution or hashing.
  *
  * @author Sjoerd van den Dries
  * @version March 4, 2011
@@ -72,9 +114,45 @@ public class TfListener {
   public static final long MAX_STORAGE_TIME = (new Duration(10, 0)).totalNsecs();
 
   private Subscriber<tfMessage> tfSubscriber;
+  private Subscriber<tfMessage> tfStaticSubscriber;
   private ConnectedNode node;
   /** Map that maps frame IDs (names) to frames */
-  protected HashMap<String, Frame> frames;
+  protected ConcurrentHashMap<String, Frame> frames;
+  /** Frames indexed by handle; replaced by a larger copy when full */
+  protected volatile Frame[] framesByHandle;
+  /** Number of frames, and so the handle of the next frame */
+  protected int frameCount;
+  /** Incremented by the frames whenever a parent edge is added to the graph */
+  protected AtomicInteger topologyVersion;
+  /** Counters and latency histograms of inserts, lookups and ingestion */
+  private final TfMetrics metrics = new TfMetrics();
+  /** Requests of waitForTransform that could not be answered yet */
+  private final ConcurrentLinkedQueue<PendingTransform> pendingTransforms = new ConcurrentLinkedQueue<PendingTransform>();
+  /** Maximum number of transforms the ingestion worker inserts before pruning and notifying listeners */
+  private static final int MAX_INGEST_BATCH = 256;
+  /** Transforms received by the subscribers, waiting to be inserted by the ingestion worker */
+  private final ConcurrentLinkedQueue<QueuedTransform> ingestQueue = new ConcurrentLinkedQueue<QueuedTransform>();
+  /** Thread that inserts queued transforms; null if the listener is not started */
+  private volatile IngestionWorker ingestionWorker;
+  /** Storage time of frames that match none of the storage rules, in nanoseconds */
+  private long defaultStorageTime = MAX_STORAGE_TIME;
+  /** Storage times per frame pattern, in the order they were set */
+  private final ArrayList<StorageRule> storageRules = new ArrayList<StorageRule>();
+  /** Maximum number of bytes of stored transforms; 0 if there is no limit */
+  private volatile long memoryBudget;
+  /** Time span of transforms that eviction leaves on every edge, as long as that fits the budget */
+  private volatile long minStorageTime = (new Duration(1, 0)).totalNsecs();
+  /** Held while inserting transforms, by setTransform and by the ingestion worker; never by lookups */
+  private final Object insertLock = new Object();
+  /** Edges ordered by rate by enforceMemoryBudget, with their rates; guarded by insertLock */
+  private TimeCache[] evictionCaches = new TimeCache[16];
+  private double[] evictionRates = new double[16];
+  /** Last epoch whose inserts are complete; the inserts in progress belong to the next epoch */
+  private volatile long publishedEpoch;
+  /** Records the transforms received from tf; null if not recording */
+  private volatile TfRecorder recorder;
+  /** Listeners that are notified whenever new transforms were inserted */
+  private final CopyOnWriteArrayList<UpdateListener> updateListeners = new CopyOnWriteArrayList<UpdateListener>();
   /** TF name prefix, currently not used (TODO) */
   protected String tfPrefix = "";
 
@@ -95,6 +173,23 @@ public class TfListener {
     return topic;
   }
 
+  /** The ROS topic to subscribe to static TF data, defaults to "/tf_static". */
+  private String staticTopic = "/tf_static";
+
+  /**
+   * The ROS topic to subscribe to static TF data, defaults to "/tf_static".
+   * This does not change a running listener.  For that you must call
+   * stop() and start() again.
+   */
+  public void setStaticTopic(String newTopic) {
+    staticTopic = newTopic;
+  }
+
+  /** The ROS topic to subscribe to static TF data, defaults to "/tf_static". */
+  public String getStaticTopic() {
+    return staticTopic;
+  }
+
   /* **********************************************************************
    * *                           INITIALIZATION                           *
    * ********************************************************************** */
@@ -103,16 +198,52 @@ public class TfListener {
    * Class constructor.  Initializes internal storage.
    */
   public TfListener() {
-    frames = new HashMap<String, Frame>();
+    frames = new ConcurrentHashMap<String, Frame>();
+    framesByHandle = new Frame[64];
+    frameCount = 0;
+    topologyVersion = new AtomicInteger();
   }
 
   /**
-   * Subscribes to tf on the given Node and starts the listener.
+   * Returns the number of lookups that were answered from the composed-result cache.
+   */
+  public long getResultCacheHits() {
+    return metrics.lookupCount(TfMetrics.CACHE_HITS);
+  }
+
+  /**
+   * Returns the number of lookups (between different frames) that were not answered from the
+   * composed-result cache.
+   */
+  public long getResultCacheMisses() {
+    return metrics.lookupCount(TfMetrics.CACHE_MISSES);
+  }
+
+  /**
+   * Returns the metrics of this listener. They are always collected; call snapshot() on the result to read
+   * them.
+   */
+  public TfMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Returns a snapshot of the metrics of this listener, including the rate and memory usage of every edge
+   * in the tf graph.
+   */
+  public TfMetrics.Snapshot getMetricsSnapshot() {
+    return new TfMetrics.Snapshot(metrics, getMemoryUsage());
+  }
+
+  /**
+   * Subscribes to tf and static tf on the given Node and starts the listener.
    * Stops any previous subscription first.
    */
   public boolean start(ConnectedNode node) {
     stop();
     this.node = node;
+    ingestionWorker = new IngestionWorker();
+    ingestionWorker.start();
     try {
       tfSubscriber = node.newSubscriber(getTopic(), "tf/tfMessage");
       tfSubscriber.addMessageListener(
@@ -121,26 +252,61 @@ public class TfListener {
           public void onNewMessage(final tfMessage msg) {
             if (msg != null) {
               for(TransformStamped tf : msg.getTransforms()) {
-                setTransform(tf);
+                queueTransform(tf, false);
+              }
+              wakeIngestionWorker();
+            }
+          }
+        });
+      tfStaticSubscriber = node.newSubscriber(getStaticTopic(), "tf/tfMessage");
+      tfStaticSubscriber.addMessageListener(
+        new MessageListener<tfMessage>() {
+          @Override
+          public void onNewMessage(final tfMessage msg) {
+            if (msg != null) {
+              for(TransformStamped tf : msg.getTransforms()) {
+                queueTransform(tf, true);
               }
+              wakeIngestionWorker();
             }
           }
         });
     } catch (Exception e) {
 //      ros.logError("Main: subscribe to /tf failed");
+      // don't leave the ingestion worker or a subscription behind
+      stop();
       return false;
     }
     return true;
   }
 
   /**
-   * Unsubscribe from /tf, but don't erase stored data.
+   * Unsubscribe from /tf and /tf_static, but don't erase stored data.
    */
   public void stop() {
     if(tfSubscriber != null) {
       tfSubscriber.shutdown();
     }
     tfSubscriber = null;
+    if(tfStaticSubscriber != null) {
+      tfStaticSubscriber.shutdown();
+    }
+    tfStaticSubscriber = null;
+    IngestionWorker worker = ingestionWorker;
+    ingestionWorker = null;
+    if (worker != null) {
+      // the worker inserts what is still queued before it exits
+      worker.shutdown();
+      // wait for it, so that a following start() never runs two workers at once; an UpdateListener that
+      // stops the listener runs on the worker itself, which exits once it returns
+      if (worker != Thread.currentThread()) {
+        try {
+          worker.join();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
   }
 
   /* **********************************************************************
@@ -151,43 +317,259 @@ public class TfListener {
    * Converts transform (a geometry msg) to a TransformStorage object and adds it to the buffer.
    */
   protected boolean setTransform(TransformStamped transform) {
+    return setTransform(transform, false);
+  }
+
+  /**
+   * Converts transform (a geometry msg) to a TransformStorage object and adds it to the buffer as a
+   * static transform, which is valid at all times.
+   */
+  protected boolean setStaticTransform(TransformStamped transform) {
+    return setTransform(transform, true);
+  }
+
+  /**
+   * Converts transform to a TransformStorage object and adds it to the buffer, as a static transform if
+   * isStatic is set.
+   */
+  private boolean setTransform(TransformStamped transform, boolean isStatic) {
+    synchronized (insertLock) {
+      if (applyTransform(transform, isStatic, true) == null) {
+        return false;
+      }
+      publishedEpoch++;
+    }
+    enforceMemoryBudget();
+    transformsUpdated();
+    return true;
+  }
+
+  /**
+   * Converts transform to a TransformStorage object and inserts it into the time cache of its edge, as a
+   * static transform if isStatic is set, and returns that time cache; returns null if the transform was
+   * ignored. Unless prune is set, the time cache is not pruned, and the update listeners are not notified.
+   * The transform is inserted in the epoch after publishedEpoch, so the caller must hold insertLock, and
+   * advance publishedEpoch once its inserts are complete.
+   */
+  private TimeCache applyTransform(TransformStamped transform, boolean isStatic, boolean prune) {
+    Vector3 tMsg = transform.getTransform().getTranslation();
+    Quaternion rMsg = transform.getTransform().getRotation();
+    return applyTransform(transform.getHeader().getFrameId(), transform.getChildFrameId(),
+                          transform.getHeader().getStamp().totalNsecs(),
+                          new Vector3d(tMsg.getX(), tMsg.getY(), tMsg.getZ()),
+                          new Quat4d(rMsg.getX(), rMsg.getY(), rMsg.getZ(), rMsg.getW()), isStatic, prune);
+  }
+
+  /**
+   * Adds the transform from frame childFrameID to frame frameID at the given time in nanoseconds, given by
+   * its translation and rotation, to the buffer, as a static transform if isStatic is set. Like the
+   * transforms received from tf, it is inserted right away; this lets transforms be fed from other sources,
+   * such as a TfReplayer, without creating messages.
+   */
+  public boolean setTransform(String frameID, String childFrameID, long time, Vector3d translation,
+                              Quat4d rotation, boolean isStatic) {
+    synchronized (insertLock) {
+      if (applyTransform(frameID, childFrameID, time, translation, rotation, isStatic, true) == null) {
+        return false;
+      }
+      publishedEpoch++;
+    }
+    enforceMemoryBudget();
+    transformsUpdated();
+    return true;
+  }
+
+  /**
+   * Same as applyTransform(TransformStamped, boolean, boolean), for a transform given by its frame IDs,
+   * time stamp in nanoseconds, translation and rotation.
+   */
+  private TimeCache applyTransform(String parentFrameID, String childFrameID, long time, Vector3d translation,
+                                   Quat4d rotation, boolean isStatic, boolean prune) {
     // resolve the frame ID's
-    String childFrameID = assertResolved(tfPrefix, transform.getChildFrameId());
-    String frameID = assertResolved(tfPrefix, transform.getHeader().getFrameId());
+    childFrameID = assertResolved(tfPrefix, childFrameID);
+    String frameID = assertResolved(tfPrefix, parentFrameID);
 
     boolean errorExists = false;
     if (childFrameID.equals(frameID)) {
 //      ros.logError("TF_SELF_TRANSFORM: Ignoring transform with frame_id and child_frame_id  \"" + childFrameID + "\" because they are the same");
+      metrics.selfTransforms.incrementAndGet();
       errorExists = true;
     }
 
     if (childFrameID.equals("/")) { //empty frame id will be mapped to "/"
 //      ros.logError("TF_NO_CHILD_FRAME_ID: Ignoring transform because child_frame_id not set ");
+      metrics.missingFrameIDs.incrementAndGet();
       errorExists = true;
     }
 
     if (frameID.equals("/")) { //empty parent id will be mapped to "/"
 //      ros.logError("TF_NO_FRAME_ID: Ignoring transform with child_frame_id \"" + childFrameID + "\" because frame_id not set");
+      metrics.missingFrameIDs.incrementAndGet();
       errorExists = true;
     }
 
-    if (errorExists) return false;
-
-    // lookup or insert child frame
-    Frame frame = lookupOrInsertFrame(childFrameID);
+    if (errorExists) return null;
 
-    // convert tf message to JTransform datastructure
-    transform.setChildFrameId(childFrameID);
-    transform.getHeader().setFrameId(frameID);
-    TransformStorage tf = transformStampedMsgToTF(transform);
+    // lookup or insert both frames
+    TransformStorage tf = new TransformStorage(translation, rotation, time, lookupOrInsertFrame(frameID),
+                                               lookupOrInsertFrame(childFrameID));
 
     // try to insert tf in corresponding time cache. If result is FALSE, the tf contains old data.
-    if (!frame.insertData(tf)) {
+    TimeCache cache = tf.getChildFrame().getOrInsertTimeCache(tf.getParentFrame(), isStatic);
+    if (!cache.insertData(tf, prune, publishedEpoch + 1)) {
 //      ros.logWarn("TF_OLD_DATA ignoring data from the past for frame \"" + childFrameID + "\" at time " + ((double)tf.getTimeStamp() / 1E9));
-      return false;
+      metrics.rejectedOldData.incrementAndGet();
+      return null;
     }
 
-    return true;
+    metrics.inserts.incrementAndGet();
+    return cache;
+  }
+
+  /**
+   * Queues transform to be inserted by the ingestion worker, as a static transform if isStatic is set.
+   * If the listener was not started, and so has no ingestion worker, the transform is inserted right away.
+   * Call wakeIngestionWorker() after queueing a batch of transforms.
+   */
+  protected void queueTransform(TransformStamped transform, boolean isStatic) {
+    TfRecorder activeRecorder = recorder;
+    if (activeRecorder != null) {
+      activeRecorder.record(transform, isStatic);
+    }
+    if (ingestionWorker == null) {
+      setTransform(transform, isStatic);
+      return;
+    }
+    ingestQueue.add(new QueuedTransform(transform, isStatic, System.nanoTime()));
+    metrics.recordIngestQueueDepth(metrics.ingestQueueDepth.incrementAndGet());
+  }
+
+  /**
+   * Sets the recorder that all transforms received from tf and static tf are passed to, as they arrive;
+   * null stops recording. The recorder is not closed when it is replaced.
+   */
+  public void setRecorder(TfRecorder recorder) {
+    this.recorder = recorder;
+  }
+
+  /**
+   * Wakes up the ingestion worker, if any, to insert the queued transforms.
+   */
+  protected void wakeIngestionWorker() {
+    IngestionWorker worker = ingestionWorker;
+    if (worker != null) {
+      LockSupport.unpark(worker);
+    }
+  }
+
+  /**
+   * Returns the number of transforms that are queued, but not yet inserted by the ingestion worker.
+   */
+  public int getIngestQueueDepth() {
+    return metrics.ingestQueueDepth.get();
+  }
+
+  /**
+   * Returns the largest number of transforms that were queued at the same time.
+   */
+  public int getMaxIngestQueueDepth() {
+    return metrics.maxIngestQueueDepth;
+  }
+
+  /**
+   * Returns the number of transforms the ingestion worker has taken from its queue.
+   */
+  public long getIngestedCount() {
+    return metrics.ingested.get();
+  }
+
+  /**
+   * Returns the number of batches the ingestion worker has applied.
+   */
+  public long getIngestBatchCount() {
+    return metrics.ingestBatches.get();
+  }
+
+  /**
+   * Returns the total time, in nanoseconds, the ingestion worker spent applying batches, including pruning
+   * and notifying listeners.
+   */
+  public long getIngestApplyNanos() {
+    return metrics.ingestApplyNanos.get();
+  }
+
+  /**
+   * Returns the longest time, in nanoseconds, between queueing a transform and the end of the batch that
+   * inserted it.
+   */
+  public long getMaxIngestLatencyNanos() {
+    return metrics.maxIngestLatencyNanos;
+  }
+
+  /**
+   * Listener that is notified whenever new transforms were inserted into a TfListener.
+   */
+  public interface UpdateListener {
+    /**
+     * Called on the thread that inserted the transforms, after they were inserted.
+     */
+    void onUpdate();
+  }
+
+  /**
+   * Adds a listener that is notified whenever new transforms were inserted.
+   */
+  public void addUpdateListener(UpdateListener listener) {
+    updateListeners.add(listener);
+  }
+
+  /**
+   * Removes a listener added by addUpdateListener.
+   */
+  public void removeUpdateListener(UpdateListener listener) {
+    updateListeners.remove(listener);
+  }
+
+  /**
+   * Called after new transforms were inserted; completes pending requests of waitForTransform and notifies
+   * the update listeners. Exceptions thrown by a listener are ignored, so that they neither keep the other
+   * listeners from being notified nor kill the ingestion worker.
+   */
+  protected void transformsUpdated() {
+    if (!pendingTransforms.isEmpty()) {
+      try {
+        completePendingTransforms();
+      } catch (RuntimeException e) {
+//        ros.logError("Completing pending transforms failed: " + e);
+      }
+    }
+    for (UpdateListener listener : updateListeners) {
+      try {
+        listener.onUpdate();
+      } catch (RuntimeException e) {
+//        ros.logError("Update listener failed: " + e);
+      }
+    }
+  }
+
+  /**
+   * Completes the pending requests of waitForTransform that can now be answered, and removes those that
+   * are done, i.e. answered, cancelled or timed out.
+   */
+  protected void completePendingTransforms() {
+    for (Iterator<PendingTransform> it = pendingTransforms.iterator(); it.hasNext(); ) {
+      PendingTransform request = it.next();
+      if (!request.isDone()) {
+        StampedTransform result = lookupAvailableTransform(request.targetFrameID, request.sourceFrameID,
+                                                           request.time);
+        if (result != null) {
+          request.complete(result);
+        }
+      }
+      if (request.isDone()) {
+        it.remove();
+      }
+    }
   }
 
   /**
@@ -197,12 +579,270 @@ public class TfListener {
   protected Frame lookupOrInsertFrame(String frameID) {
     Frame frame = frames.get(frameID);
     if (frame == null) {
-      frame = new Frame(frameID, MAX_STORAGE_TIME);
+      frame = insertFrame(frameID);
+    }
+    return frame;
+  }
+
+  /**
+   * Adds a frame with the given ID and the next free handle, unless another thread added it first,
+   * and returns the frame.
+   */
+  private synchronized Frame insertFrame(String frameID) {
+    Frame frame = frames.get(frameID);
+    if (frame == null) {
+      frame = new Frame(frameID, getStorageTime(frameID), frameCount, topologyVersion);
+      Frame[] handles = framesByHandle;
+      if (frameCount == handles.length) {
+        Frame[] newHandles = new Frame[handles.length * 2];
+        System.arraycopy(handles, 0, newHandles, 0, handles.length);
+        handles = newHandles;
+      }
+      handles[frameCount++] = frame;
+      framesByHandle = handles;
+      // publish in the map last, so anyone who finds the frame also finds its handle
       frames.put(frameID, frame);
     }
     return frame;
   }
 
+  /**
+   * Returns the frame with the given handle, or null if there is none.
+   */
+  protected Frame lookupFrame(int handle) {
+    Frame[] handles = framesByHandle;
+    if (handle < 0 || handle >= handles.length) {
+      return null;
+    }
+    return handles[handle];
+  }
+
+  /**
+   * Returns the handle of the frame with the given ID, for use with the handle-based lookup methods.
+   * The ID is resolved once here. If the frame has not been seen yet it is registered, so handles can
+   * be obtained before any transforms for the frame arrive.
+   */
+  public int getFrameHandle(String frameID) {
+    return lookupOrInsertFrame(assertResolved(tfPrefix, frameID)).getHandle();
+  }
+
+  /**
+   * Returns the handle of the frame with the given ID, like getFrameHandle, but returns -1 instead of
+   * registering the frame if it has not been seen yet.
+   */
+  public int findFrameHandle(String frameID) {
+    Frame frame = frames.get(assertResolved(tfPrefix, frameID));
+    return (frame == null) ? -1 : frame.getHandle();
+  }
+
+  /**
+   * Returns the (resolved) ID of the frame with the given handle, or null if there is no such frame.
+   */
+  public String getFrameID(int handle) {
+    Frame frame = lookupFrame(handle);
+    return (frame == null) ? null : frame.getFrameID();
+  }
+
+  /* **********************************************************************
+   * *                          MEMORY MANAGEMENT                         *
+   * ********************************************************************** */
+
+  /**
+   * Sets the time transforms are stored, before the newest transform of their edge, for all frames that
+   * match none of the patterns given to setStorageTime(String, Duration). Applies to existing frames too.
+   */
+  public synchronized void setStorageTime(Duration storageTime) {
+    defaultStorageTime = storageTime.totalNsecs();
+    applyStorageTimes();
+  }
+
+  /**
+   * Sets the time transforms are stored, before the newest transform of their edge, for the edges from
+   * all frames whose ID matches the regular expression framePattern to their parents. If a frame matches
+   * several patterns, the one set last applies; setting a pattern again replaces its storage time. Applies
+   * to existing frames too.
+   */
+  public synchronized void setStorageTime(String framePattern, Duration storageTime) {
+    for (Iterator<StorageRule> it = storageRules.iterator(); it.hasNext(); ) {
+      if (it.next().pattern.pattern().equals(framePattern)) {
+        it.remove();
+      }
+    }
+    storageRules.add(new StorageRule(Pattern.compile(framePattern), storageTime.totalNsecs()));
+    applyStorageTimes();
+  }
+
+  /**
+   * Returns the storage time for the edges from the frame with the given ID to its parents, in nanoseconds.
+   */
+  protected synchronized long getStorageTime(String frameID) {
+    for (int i = storageRules.size() - 1; i >= 0; i--) {
+      StorageRule rule = storageRules.get(i);
+      if (rule.pattern.matcher(frameID).matches()) {
+        return rule.storageTime;
+      }
+    }
+    return defaultStorageTime;
+  }
+
+  /**
+   * Updates the storage time of all frames to the current rules.
+   */
+  private void applyStorageTimes() {
+    for (Frame frame : frames.values()) {
+      long storageTime = getStorageTime(frame.getFrameID());
+      if (storageTime != frame.getMaxStorageTime()) {
+        frame.setMaxStorageTime(storageTime);
+      }
+    }
+  }
+
+  /**
+   * Sets the maximum number of bytes (TimeCache.BYTES_PER_SAMPLE per transform) all stored transforms may
+   * take together; 0 means no limit. Whenever the budget is exceeded, the oldest transforms are evicted,
+   * first from the edges with the highest rate, and buffers that become mostly empty are shrunk.
+   */
+  public void setMemoryBudget(long bytes) {
+    memoryBudget = bytes;
+    enforceMemoryBudget();
+  }
+
+  /**
+   * Returns the memory budget set by setMemoryBudget, or 0 if there is none.
+   */
+  public long getMemoryBudget() {
+    return memoryBudget;
+  }
+
+  /**
+   * Sets the time span of transforms that eviction leaves on every edge, as long as the memory budget can
+   * be met otherwise; defaults to 1 second.
+   */
+  public void setMinStorageTime(Duration minStorageTime) {
+    this.minStorageTime = minStorageTime.totalNsecs();
+  }
+
+  /**
+   * Returns the number of transforms that were evicted to stay within the memory budget.
+   */
+  public long getEvictedCount() {
+    return metrics.evicted.get();
+  }
+
+  /**
+   * Returns the number of bytes taken by all stored transforms. This is what the memory budget limits; see
+   * getAllocatedMemoryBytes() for the size of the buffers that hold them.
+   */
+  public long getMemoryBytes() {
+    long samples = 0;
+    Frame[] handles = framesByHandle;
+    for (int i = 0; i < handles.length && handles[i] != null; i++) {
+      for (TimeCache cache : handles[i].getParentCaches()) {
+        samples += cache.getSampleCount();
+      }
+    }
+    return samples * TimeCache.BYTES_PER_SAMPLE;
+  }
+
+  /**
+   * Returns the number of bytes allocated for the buffers of all time caches. A buffer grows by doubling
+   * when it is full and shrinks once it is less than a quarter full, so this is at most about four times
+   * getMemoryBytes().
+   */
+  public long getAllocatedMemoryBytes() {
+    long samples = 0;
+    Frame[] handles = framesByHandle;
+    for (int i = 0; i < handles.length && handles[i] != null; i++) {
+      for (TimeCache cache : handles[i].getParentCaches()) {
+        samples += cache.getCapacity();
+      }
+    }
+    return samples * TimeCache.BYTES_PER_SAMPLE;
+  }
+
+  /**
+   * Returns the current memory usage of every edge in the tf graph.
+   */
+  public List<EdgeMemoryUsage> getMemoryUsage() {
+    ArrayList<EdgeMemoryUsage> usage = new ArrayList<EdgeMemoryUsage>();
+    Frame[] handles = framesByHandle;
+    for (int i = 0; i < handles.length && handles[i] != null; i++) {
+      for (TimeCache cache : handles[i].getParentCaches()) {
+        usage.add(new EdgeMemoryUsage(cache));
+      }
+    }
+    return usage;
+  }
+
+  /**
+   * Evicts the oldest transforms while the memory budget is exceeded. Edges are handled from the highest to
+   * the lowest rate; first, every edge keeps at least minStorageTime of transforms, then, if that is not
+   * enough, at least two transforms. Does not allocate unless the number of edges grew.
+   */
+  protected void enforceMemoryBudget() {
+    long budget = memoryBudget;
+    if (budget <= 0) {
+      return;
+    }
+    long excess = getMemoryBytes() - budget;
+    if (excess <= 0) {
+      return;
+    }
+    long excessSamples = (excess + TimeCache.BYTES_PER_SAMPLE - 1) / TimeCache.BYTES_PER_SAMPLE;
+
+    synchronized (insertLock) {
+      // order the edges by rate, highest first; the arrays are reused while the budget keeps being exceeded
+      int count = 0;
+      Frame[] handles = framesByHandle;
+      for (int i = 0; i < handles.length && handles[i] != null; i++) {
+        for (TimeCache cache : handles[i].getParentCaches()) {
+          if (count == evictionCaches.length) {
+            evictionCaches = Arrays.copyOf(evictionCaches, 2 * count);
+            evictionRates = Arrays.copyOf(evictionRates, 2 * count);
+          }
+          double rate = cache.getRate();
+          int j = count++;
+          while (j > 0 && evictionRates[j - 1] < rate) {
+            evictionCaches[j] = evictionCaches[j - 1];
+            evictionRates[j] = evictionRates[j - 1];
+            j--;
+          }
+          evictionCaches[j] = cache;
+          evictionRates[j] = rate;
+        }
+      }
+
+      try {
+        for (int pass = 0; pass < 2; pass++) {
+          long minSpan = (pass == 0) ? minStorageTime : 0;
+          for (int i = 0; i < count; i++) {
+            int evicted = evictionCaches[i].evictOldest((int) Math.min(excessSamples, Integer.MAX_VALUE), minSpan);
+            metrics.evicted.addAndGet(evicted);
+            excessSamples -= evicted;
+            if (excessSamples <= 0) {
+              return;
+            }
+          }
+        }
+      } finally {
+        Arrays.fill(evictionCaches, 0, count, null);
+      }
+    }
+  }
+
+  /**
+   * Storage time for the frames whose ID matches a pattern.
+   */
+  private static class StorageRule {
+    final Pattern pattern;
+    final long storageTime;
+
+    StorageRule(Pattern pattern, long storageTime) {
+      this.pattern = pattern;
+      this.storageTime = storageTime;
+    }
+  }
+
   /* **********************************************************************
    * *                         TRANSFORM METHODS                          *
    * ********************************************************************** */
@@ -250,89 +890,706 @@ public class TfListener {
     stampedOut.timeStamp = stampedIn.timeStamp;
   }
 
-  /* **********************************************************************
-   * *                          LOOKUP METHODS                            *
-   * ********************************************************************** */
-
   /**
-   * Returns the transform from the specified source frame to the target frame at a given time; returns
-   * null if no transformation could be found.
+   * Transforms count points, stored as consecutive (x, y, z) triples in xyzIn, from the source frame to the
+   * target frame at the given time, and places the results in xyzOut (which may be xyzIn). The transform is
+   * looked up once for all points, and nothing is allocated. Returns false, leaving xyzOut unchanged, if no
+   * transformation could be found.
+   */
+  public boolean transformPoints(String targetFrameID, String sourceFrameID, Time time,
+                                 double[] xyzIn, double[] xyzOut, int count) {
+    StampedTransform transform = scratch.get().transform;
+    if (!lookupTransform(targetFrameID, sourceFrameID, time, transform)) {
+      return false;
+    }
+    transform.transformPoints(xyzIn, xyzOut, count);
+    return true;
+  }
+
+  /**
+   * Same as transformPoints(String, String, Time, double[], double[], int), for points stored as floats.
+   */
+  public boolean transformPoints(String targetFrameID, String sourceFrameID, Time time,
+                                 float[] xyzIn, float[] xyzOut, int count) {
+    StampedTransform transform = scratch.get().transform;
+    if (!lookupTransform(targetFrameID, sourceFrameID, time, transform)) {
+      return false;
+    }
+    transform.transformPoints(xyzIn, xyzOut, count);
+    return true;
+  }
+
+  /**
+   * Transforms count points in the XY plane of the source frame, stored as consecutive (x, y) pairs in xyIn,
+   * to the target frame at the given time, and places the x and y of the results in xyOut (which may be xyIn).
+   * Looks up the transform once and does not allocate. Returns false, leaving xyOut unchanged, if no
+   * transformation could be found.
+   */
+  public boolean transformPoints2D(String targetFrameID, String sourceFrameID, Time time,
+                                   float[] xyIn, float[] xyOut, int count) {
+    StampedTransform transform = scratch.get().transform;
+    if (!lookupTransform(targetFrameID, sourceFrameID, time, transform)) {
+      return false;
+    }
+    transform.transformPoints2D(xyIn, xyOut, count);
+    return true;
+  }
+
+  /* **********************************************************************
+   * *                          LOOKUP METHODS                            *
+   * ********************************************************************** */
+
+  /**
+   * Returns the transform from the specified source frame to the target frame at a given time; returns
+   * null if no transformation could be found.
+   */
+  public StampedTransform lookupTransform(String targetFrameID, String sourceFrameID, Time time) {
+    // resolve the source and target IDs
+    String resolvedTargetID = assertResolved(tfPrefix, targetFrameID);
+    String resolvedSourceID = assertResolved(tfPrefix, sourceFrameID);
+
+    // if source and target are the same, return the identity transform
+    if (resolvedSourceID.equals(resolvedTargetID)) {
+      StampedTransform out = StampedTransform.getIdentity();
+      out.timeStamp = time;
+      out.frameID = resolvedSourceID;
+      out.childFrameID = resolvedTargetID;
+      return out;
+    }
+
+    // lookup source and target frame
+    Frame sourceFrame = frames.get(resolvedSourceID);
+    Frame targetFrame = frames.get(resolvedTargetID);
+
+    if (sourceFrame == null) {
+//      ros.logError("Cannot transform: source frame \"" + resolvedSourceID + "\" does not exist.");
+      countUnknownFrame();
+      return null;
+    }
+
+    if (targetFrame == null) {
+//      ros.logError("Cannot transform: target frame \"" + resolvedTargetID + "\" does not exist.");
+      countUnknownFrame();
+      return null;
+    }
+
+    StampedTransform out = lookupTransform(targetFrame, sourceFrame, time.totalNsecs());
+    if (out != null) {
+      out.timeStamp = time;
+    }
+    return out;
+  }
+
+  /**
+   * Returns the transform from the frame with handle sourceFrame to the frame with handle targetFrame
+   * at the given time in nanoseconds; returns null if no transformation could be found.
+   */
+  public StampedTransform lookupTransform(int targetFrame, int sourceFrame, long time) {
+    Frame target = lookupFrame(targetFrame);
+    Frame source = lookupFrame(sourceFrame);
+
+    if (source == null || target == null) {
+      countUnknownFrame();
+      return null;
+    }
+    return lookupTransform(target, source, time);
+  }
+
+  /**
+   * Looks up the transform from the specified source frame to the target frame at a given time and writes
+   * it to out, reusing out's transform and time stamp objects; returns false, leaving out unchanged, if no
+   * transformation could be found. If the frame IDs are fully resolved, this does not allocate.
+   */
+  public boolean lookupTransform(String targetFrameID, String sourceFrameID, Time time, StampedTransform out) {
+    return lookupTransform(targetFrameID, sourceFrameID, time, TimeCache.LATEST_EPOCH, out);
+  }
+
+  /**
+   * Same as lookupTransform(String, String, Time, StampedTransform), but only uses the transforms that
+   * were inserted in or before the given epoch.
+   */
+  protected boolean lookupTransform(String targetFrameID, String sourceFrameID, Time time, long epoch,
+                                    StampedTransform out) {
+    String resolvedTargetID = assertResolved(tfPrefix, targetFrameID);
+    String resolvedSourceID = assertResolved(tfPrefix, sourceFrameID);
+
+    // if source and target are the same, the result is the identity transform, even if the frame has no
+    // data yet, as for lookupTransform(String, String, Time)
+    if (resolvedSourceID.equals(resolvedTargetID)) {
+      out.setIdentity();
+      setTimeStamp(out, time.totalNsecs());
+      out.frameID = resolvedTargetID;
+      out.childFrameID = resolvedSourceID;
+      return true;
+    }
+
+    Frame targetFrame = frames.get(resolvedTargetID);
+    Frame sourceFrame = frames.get(resolvedSourceID);
+
+    if (sourceFrame == null || targetFrame == null) {
+      countUnknownFrame();
+      return false;
+    }
+    return lookupTransform(targetFrame, sourceFrame, time.totalNsecs(), epoch, out);
+  }
+
+  /**
+   * Returns a read-only view of the buffer as it is now. Lookups through the snapshot ignore all transforms
+   * inserted after this call, so the lookups of, for instance, one render pass are consistent with each
+   * other, however much data arrives in between. Taking a snapshot only reads a counter; neither it nor
+   * lookups through it block the insertion of transforms.
+   */
+  public TfSnapshot snapshot() {
+    return new TfSnapshot(this, publishedEpoch);
+  }
+
+  /**
+   * Returns true if the transform from the specified source frame to the target frame at the given time
+   * can be looked up, i.e. if both frames exist, are connected, and all transforms between them have some
+   * data. Like lookupTransform, this accepts data that has to be extrapolated to the given time; use
+   * isTransformAvailable to know whether data for that time has actually arrived.
+   */
+  public boolean canTransform(String targetFrameID, String sourceFrameID, Time time) {
+    return canTransform(targetFrameID, sourceFrameID, time, TimeCache.LATEST_EPOCH);
+  }
+
+  /**
+   * Same as canTransform(String, String, Time), but only uses the transforms that were inserted in or
+   * before the given epoch. Looks up into the scratch transform of the calling thread, so it does not
+   * allocate if the frame IDs are fully resolved.
+   */
+  protected boolean canTransform(String targetFrameID, String sourceFrameID, Time time, long epoch) {
+    return lookupTransform(targetFrameID, sourceFrameID, time, epoch, scratch.get().transform);
+  }
+
+  /**
+   * Returns true if the transform from the specified source frame to the target frame at the given time can
+   * be looked up without forward extrapolation, i.e. if the frames are connected and all transforms between
+   * them have data at or after the given time. Unlike canTransform, this becomes true only once the data for
+   * the given time has actually arrived.
+   */
+  public boolean isTransformAvailable(String targetFrameID, String sourceFrameID, Time time) {
+    String resolvedTargetID = assertResolved(tfPrefix, targetFrameID);
+    String resolvedSourceID = assertResolved(tfPrefix, sourceFrameID);
+    if (resolvedSourceID.equals(resolvedTargetID)) {
+      return true;
+    }
+    Frame targetFrame = frames.get(resolvedTargetID);
+    Frame sourceFrame = frames.get(resolvedSourceID);
+    if (sourceFrame == null || targetFrame == null) {
+      return false;
+    }
+
+    long t = time.totalNsecs();
+    FramePath path = findPath(targetFrame, sourceFrame, t, scratch.get());
+    if (path == null) {
+      return false;
+    }
+    for (int i = 0; i < path.inverseCount; i++) {
+      if (path.inverseEdges[i].getLatestTimeStamp() < t) return false;
+    }
+    for (int i = 0; i < path.forwardCount; i++) {
+      if (path.forwardEdges[i].getLatestTimeStamp() < t) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Returns a Future for the transform from the specified source frame to the target frame at the given
+   * time. The Future is completed once the transform is available without forward extrapolation, as
+   * isTransformAvailable tells, so waiting for a time in the future returns data for that time rather than
+   * data extrapolated from older transforms. If the transform is not available yet, the Future is completed
+   * on the thread that inserts the data that makes it available: the tf_ingestion worker for received
+   * transforms, or the caller of setTransform. Do not wait for the Future in an UpdateListener, which runs on
+   * that same thread. If the transform does not become available within timeout, the Future completes with
+   * a null result.
+   */
+  public Future<StampedTransform> waitForTransform(String targetFrameID, String sourceFrameID, Time time,
+                                                   Duration timeout) {
+    String resolvedTargetID = assertResolved(tfPrefix, targetFrameID);
+    String resolvedSourceID = assertResolved(tfPrefix, sourceFrameID);
+    PendingTransform request = new PendingTransform(resolvedTargetID, resolvedSourceID, time,
+                                                    System.nanoTime() + timeout.totalNsecs());
+    StampedTransform result = lookupAvailableTransform(resolvedTargetID, resolvedSourceID, time);
+    if (result != null) {
+      request.complete(result);
+      return request;
+    }
+    pendingTransforms.add(request);
+    // data may have arrived between the lookup and adding the request
+    result = lookupAvailableTransform(resolvedTargetID, resolvedSourceID, time);
+    if (result != null) {
+      request.complete(result);
+    }
+    return request;
+  }
+
+  /**
+   * Returns the transform from the specified source frame to the target frame at the given time if it is
+   * available without forward extrapolation (see isTransformAvailable), or else null.
+   */
+  private StampedTransform lookupAvailableTransform(String targetFrameID, String sourceFrameID, Time time) {
+    if (!isTransformAvailable(targetFrameID, sourceFrameID, time)) {
+      return null;
+    }
+    return lookupTransform(targetFrameID, sourceFrameID, time);
+  }
+
+  /**
+   * Looks up the transform from the frame with handle sourceFrame to the frame with handle targetFrame
+   * at the given time in nanoseconds and writes it to out, reusing out's transform and time stamp objects;
+   * returns false, leaving out unchanged, if no transformation could be found. Does not allocate.
+   */
+  public boolean lookupTransform(int targetFrame, int sourceFrame, long time, StampedTransform out) {
+    return lookupTransform(targetFrame, sourceFrame, time, TimeCache.LATEST_EPOCH, out);
+  }
+
+  /**
+   * Same as lookupTransform(int, int, long, StampedTransform), but only uses the transforms that were
+   * inserted in or before the given epoch.
+   */
+  protected boolean lookupTransform(int targetFrame, int sourceFrame, long time, long epoch,
+                                    StampedTransform out) {
+    Frame target = lookupFrame(targetFrame);
+    Frame source = lookupFrame(sourceFrame);
+
+    if (source == null || target == null) {
+      countUnknownFrame();
+      return false;
+    }
+    return lookupTransform(target, source, time, epoch, out);
+  }
+
+  /**
+   * Looks up the transforms from each of the specified source frames to the target frame at a given time,
+   * for instance all links of a robot model into the fixed frame. Every out[i] that is not null is reused
+   * for the transform of sourceFrameIDs[i]; it is set to a new StampedTransform if it was null, and to null
+   * if no transformation could be found. Returns the number of transforms that were found.
+   *
+   * Where the tf graph is a tree, the transform from every frame involved to the root of its tree is
+   * composed once and shared by all frames below it, so the cost grows with the number of edges involved
+   * rather than with the number of sources times their depth. Frames with more than one parent are looked
+   * up one by one, as by lookupTransform.
+   */
+  public int lookupTransforms(String targetFrameID, String[] sourceFrameIDs, Time time, StampedTransform[] out) {
+    long t = time.totalNsecs();
+    LookupScratch s = scratch.get();
+    TfMetrics.ThreadCounters counters = s.counters;
+    s.beginAncestorWalk();
+    String resolvedTargetID = assertResolved(tfPrefix, targetFrameID);
+    Frame targetFrame = frames.get(resolvedTargetID);
+    AncestorTransform target = targetFrame == null ? null : walkToRoot(targetFrame, t, s);
+    if (target != null && target.state == ANCESTOR_FOUND) {
+      s.targetFromRoot.set(target.toRoot);
+      s.targetFromRoot.invert();
+    }
+
+    int found = 0;
+    for (int i = 0; i < sourceFrameIDs.length; i++) {
+      String resolvedSourceID = assertResolved(tfPrefix, sourceFrameIDs[i]);
+      if (out[i] == null) {
+        out[i] = StampedTransform.getIdentity();
+      }
+      // if source and target are the same, the result is the identity transform, as for lookupTransform,
+      // even if the frame has no data yet
+      if (resolvedSourceID.equals(resolvedTargetID)) {
+        s.result.setIdentity();
+        out[i].set(s.result);
+        setTimeStamp(out[i], t);
+        out[i].frameID = resolvedSourceID;
+        out[i].childFrameID = resolvedTargetID;
+        found++;
+        continue;
+      }
+      Frame sourceFrame = frames.get(resolvedSourceID);
+      if (targetFrame == null || sourceFrame == null) {
+        countUnknownFrame();
+        out[i] = null;
+        continue;
+      }
+
+      AncestorTransform source = walkToRoot(sourceFrame, t, s);
+      if (target.state == ANCESTOR_AMBIGUOUS || source.state == ANCESTOR_AMBIGUOUS) {
+        // not a tree: find the path of this source on its own
+        if (lookupTransform(targetFrame, sourceFrame, t, out[i])) {
+          found++;
+        } else {
+          out[i] = null;
+        }
+        continue;
+      }
+
+      counters.increment(TfMetrics.LOOKUPS);
+      if (target.root != source.root) {
+        counters.increment(TfMetrics.NOT_CONNECTED);
+        out[i] = null;
+        continue;
+      } else if (target.state == ANCESTOR_NO_DATA || source.state == ANCESTOR_NO_DATA) {
+        counters.increment(TfMetrics.NO_DATA);
+        out[i] = null;
+        continue;
+      } else {
+        s.result.mul(s.targetFromRoot, source.toRoot);
+        counters.increment(target.extrapolated || source.extrapolated ? TfMetrics.EXTRAPOLATED
+                                                                      : TfMetrics.INTERPOLATED);
+      }
+      out[i].set(s.result);
+      setTimeStamp(out[i], t);
+      out[i].frameID = targetFrame.getFrameID();
+      out[i].childFrameID = sourceFrame.getFrameID();
+      found++;
+    }
+    return found;
+  }
+
+  /**
+   * Returns the transform from sourceFrame to targetFrame at the given time in nanoseconds; returns
+   * null if no transformation could be found.
+   */
+  protected StampedTransform lookupTransform(Frame targetFrame, Frame sourceFrame, long time) {
+    StampedTransform out = StampedTransform.getIdentity();
+    if (!lookupTransform(targetFrame, sourceFrame, time, out)) {
+      return null;
+    }
+    return out;
+  }
+
+  /**
+   * Writes the transform from sourceFrame to targetFrame at the given time in nanoseconds to out; returns
+   * false, leaving out unchanged, if no transformation could be found. All intermediate results are kept
+   * in the calling thread's LookupScratch, so this does not allocate.
+   */
+  protected boolean lookupTransform(Frame targetFrame, Frame sourceFrame, long time, StampedTransform out) {
+    return lookupTransform(targetFrame, sourceFrame, time, TimeCache.LATEST_EPOCH, out);
+  }
+
+  /**
+   * Same as lookupTransform(Frame, Frame, long, StampedTransform), but only uses the transforms that were
+   * inserted in or before the given epoch.
+   */
+  protected boolean lookupTransform(Frame targetFrame, Frame sourceFrame, long time, long epoch,
+                                    StampedTransform out) {
+    LookupScratch s = scratch.get();
+    TfMetrics.ThreadCounters counters = s.counters;
+    counters.increment(TfMetrics.LOOKUPS);
+    boolean timed = counters.sample();
+    long start = timed ? System.nanoTime() : 0;
+
+    int outcome = composeTransform(targetFrame, sourceFrame, time, epoch, s);
+    counters.increment(outcome);
+    boolean found = isFound(outcome);
+    if (found) {
+      out.set(s.result);
+      setTimeStamp(out, time);
+      out.frameID = targetFrame.getFrameID();
+      out.childFrameID = sourceFrame.getFrameID();
+    }
+
+    if (timed) {
+      counters.recordLatency(System.nanoTime() - start);
+    }
+    return found;
+  }
+
+  /**
+   * Composes the transform from sourceFrame to targetFrame at the given time in nanoseconds into s.result,
+   * using only the transforms that were inserted in or before the given epoch. Returns the outcome as the
+   * index of its lookup counter in TfMetrics: INTERPOLATED or EXTRAPOLATED if the transform was found,
+   * NOT_CONNECTED or NO_DATA if not. Counts result cache hits and misses, but leaves counting the outcome
+   * to the caller. Lookups in an earlier epoch than LATEST_EPOCH bypass the result cache.
+   */
+  private int composeTransform(Frame targetFrame, Frame sourceFrame, long time, long epoch, LookupScratch s) {
+    TfMetrics.ThreadCounters counters = s.counters;
+    RigidTransform result = s.result;
+    result.setIdentity();
+
+    // if source and target are the same, the result is the identity transform
+    if (sourceFrame == targetFrame) {
+      return TfMetrics.INTERPOLATED;
+    }
+
+    boolean latest = (epoch == TimeCache.LATEST_EPOCH);
+    int version = topologyVersion.get();
+    if (latest) {
+      ComposedResult cached = s.lookupResult(targetFrame.getHandle(), sourceFrame.getHandle(), time, version);
+      if (cached != null) {
+        counters.increment(TfMetrics.CACHE_HITS);
+        result.set(cached.transform);
+        return cached.extrapolated ? TfMetrics.EXTRAPOLATED : TfMetrics.INTERPOLATED;
+      }
+      counters.increment(TfMetrics.CACHE_MISSES);
+    }
+
+    // find the edges using findPath. If it returns null, no transformation could be found.
+    FramePath path = findPath(targetFrame, sourceFrame, time, s);
+    if (path == null) {
+      // TODO give warning
+//      ros.logError("Cannot transform: source + \"" + sourceFrame.getFrameID() + "\" and target \""
+//                   + targetFrame.getFrameID() + "\" are not connected.");
+      return TfMetrics.NOT_CONNECTED;
+    }
+
+    ComposedResult entry = latest ? s.insertResult(targetFrame.getHandle(), sourceFrame.getHandle(), time, version)
+                                  : null;
+    s.extrapolated = false;
+
+    // multiply all transforms from frame F to source frame
+    for (int i = 0; i < path.inverseCount; i++) {
+      if (!getEdge(path.inverseEdges[i], time, epoch, s, entry)) return TfMetrics.NO_DATA;
+      result.mul(s.edge);
+    }
+
+    // multiply the inverses of all transforms from frame F to target frame
+    for (int i = 0; i < path.forwardCount; i++) {
+      if (!getEdge(path.forwardEdges[i], time, epoch, s, entry)) return TfMetrics.NO_DATA;
+      s.edge.invert();
+      result.mul(s.edge, result);
+    }
+
+    if (entry != null) {
+      entry.transform.set(result);
+      entry.extrapolated = s.extrapolated;
+      entry.valid = true;
+    }
+    return s.extrapolated ? TfMetrics.EXTRAPOLATED : TfMetrics.INTERPOLATED;
+  }
+
+  /**
+   * Returns true if the given outcome of composeTransform means that the transform was found.
+   */
+  private static boolean isFound(int outcome) {
+    return outcome == TfMetrics.INTERPOLATED || outcome == TfMetrics.EXTRAPOLATED;
+  }
+
+  /**
+   * Returns the transform from the specified source frame at sourceTime to the target frame at a given
+   * targetTime, based on a given fixed frame; returns null if no transformation could be found.
+   */
+  public StampedTransform lookupTransform(String targetID, Time targetTime, String sourceID, Time sourceTime, String fixedID) {
+    StampedTransform out = StampedTransform.getIdentity();
+    if (!lookupTransform(targetID, targetTime, sourceID, sourceTime, fixedID, out)) {
+      return null;
+    }
+    return out;
+  }
+
+  /**
+   * Looks up the transform from the specified source frame at sourceTime to the target frame at a given
+   * targetTime, based on a given fixed frame, and writes it to out, reusing out's transform and time stamp
+   * objects; returns false, leaving out unchanged, if no transformation could be found. The time stamp of
+   * the result is targetTime. If the frame IDs are fully resolved, this does not allocate.
    */
-  public StampedTransform lookupTransform(String targetFrameID, String sourceFrameID, Time time) {
-    // resolve the source and target IDs
-    String resolvedTargetID = assertResolved(tfPrefix, targetFrameID);
-    String resolvedSourceID = assertResolved(tfPrefix, sourceFrameID);
-
-    // if source and target are the same, return the identity transform
-    if (resolvedSourceID == resolvedTargetID) {
-      StampedTransform out = StampedTransform.getIdentity();
-      out.timeStamp = time;
-      out.frameID = resolvedSourceID;
-      out.childFrameID = resolvedTargetID;
-      return out;
+  public boolean lookupTransform(String targetID, Time targetTime, String sourceID, Time sourceTime, String fixedID,
+                                 StampedTransform out) {
+    String resolvedTargetID = assertResolved(tfPrefix, targetID);
+    String resolvedSourceID = assertResolved(tfPrefix, sourceID);
+    String resolvedFixedID = assertResolved(tfPrefix, fixedID);
+
+    // if all frames are the same, both halves are the identity transform, even if the frame has no data yet
+    if (resolvedSourceID.equals(resolvedTargetID) && resolvedFixedID.equals(resolvedTargetID)) {
+      LookupScratch s = scratch.get();
+      s.result.setIdentity();
+      out.set(s.result);
+      setTimeStamp(out, targetTime.totalNsecs());
+      out.frameID = resolvedTargetID;
+      out.childFrameID = resolvedSourceID;
+      return true;
     }
 
-    // lookup source and target frame
-    Frame sourceFrame = frames.get(resolvedSourceID);
     Frame targetFrame = frames.get(resolvedTargetID);
+    Frame sourceFrame = frames.get(resolvedSourceID);
+    Frame fixedFrame = frames.get(resolvedFixedID);
 
-    if (sourceFrame == null) {
-//      ros.logError("Cannot transform: source frame \"" + resolvedSourceID + "\" does not exist.");
-      return null;
+    if (targetFrame == null || sourceFrame == null || fixedFrame == null) {
+      countUnknownFrame();
+      return false;
     }
+    return lookupTransform(targetFrame, targetTime.totalNsecs(), sourceFrame, sourceTime.totalNsecs(), fixedFrame,
+                           out);
+  }
 
-    if (targetFrame == null) {
-//      ros.logError("Cannot transform: target frame \"" + resolvedTargetID + "\" does not exist.");
-      return null;
+  /**
+   * Writes the transform from sourceFrame at sourceTime to targetFrame at targetTime, both in nanoseconds,
+   * through fixedFrame to out; returns false, leaving out unchanged, if no transformation could be found.
+   * Both halves are composed in the calling thread's LookupScratch, sharing its path and result caches,
+   * and multiplied in place, so this costs about as much as two cached lookups, counts as one lookup in
+   * the metrics, and does not allocate.
+   */
+  protected boolean lookupTransform(Frame targetFrame, long targetTime, Frame sourceFrame, long sourceTime,
+                                    Frame fixedFrame, StampedTransform out) {
+    LookupScratch s = scratch.get();
+    TfMetrics.ThreadCounters counters = s.counters;
+    counters.increment(TfMetrics.LOOKUPS);
+    boolean timed = counters.sample();
+    long start = timed ? System.nanoTime() : 0;
+
+    // transform from source frame to fixed frame, at sourceTime
+    int outcome = composeTransform(fixedFrame, sourceFrame, sourceTime, TimeCache.LATEST_EPOCH, s);
+    if (isFound(outcome)) {
+      s.fixedFromSource.set(s.result);
+      // transform from fixed frame to target frame, at targetTime
+      int targetOutcome = composeTransform(targetFrame, fixedFrame, targetTime, TimeCache.LATEST_EPOCH, s);
+      if (!isFound(targetOutcome) || outcome == TfMetrics.INTERPOLATED) {
+        outcome = targetOutcome;
+      }
+    }
+    counters.increment(outcome);
+    boolean found = isFound(outcome);
+    if (found) {
+      s.result.mul(s.fixedFromSource);
+      out.set(s.result);
+      setTimeStamp(out, targetTime);
+      out.frameID = targetFrame.getFrameID();
+      out.childFrameID = sourceFrame.getFrameID();
     }
 
-    // list that will contain transformations from source frame to some frame F
-    LinkedList<TransformStorage> inverseTransforms = new LinkedList<TransformStorage>();
-    // list that will contain transformations from frame F to target frame
-    LinkedList<TransformStorage> forwardTransforms = new LinkedList<TransformStorage>();
+    if (timed) {
+      counters.recordLatency(System.nanoTime() - start);
+    }
+    return found;
+  }
 
-    // fill the lists using lookupLists. If it returns FALSE, no transformation could be found.
-    if (!lookupLists(targetFrame, sourceFrame, time.totalNsecs(), inverseTransforms, forwardTransforms)) {
-      // TODO give warning
-//      ros.logError("Cannot transform: source + \"" + resolvedSourceID + "\" and target \""
-//                   + resolvedTargetID + "\" are not connected.");
+  /**
+   * Finds a path from sourceFrame to targetFrame at the given time; returns null if the frames are not
+   * connected. Uses findTreePath where the graph is a tree, and searchPath otherwise. The result of
+   * findTreePath does not depend on the time, so it is kept in the calling thread's path cache until the
+   * topology of the graph changes. The returned path belongs to the scratch state and is only valid until
+   * the next lookup on this thread.
+   */
+  protected FramePath findPath(Frame targetFrame, Frame sourceFrame, long time, LookupScratch s) {
+    // read the version before walking, so that a concurrent change invalidates what we store
+    int version = topologyVersion.get();
+    long key = ((long) targetFrame.getHandle() << 32) | (sourceFrame.getHandle() & 0xffffffffL);
+
+    FramePath path = s.lookupPath(key, version);
+    if (path == null) {
+      path = s.insertPath(key);
+      path.result = findTreePath(targetFrame, sourceFrame, s, path);
+    }
+
+    if (path.result == TREE_PATH_FOUND) {
+      return path;
+    } else if (path.result == TREE_PATH_NOT_CONNECTED) {
       return null;
     }
+    return searchPath(targetFrame, sourceFrame, time, s, s.searchResult) ? s.searchResult : null;
+  }
 
-    // create an identity transform with the correct time stamp
-    StampedTransform out = StampedTransform.getIdentity();
-    out.timeStamp = time;
+  /** Result of findTreePath: a path was found */
+  protected static final int TREE_PATH_FOUND = 0;
+  /** Result of findTreePath: the frames are not connected */
+  protected static final int TREE_PATH_NOT_CONNECTED = 1;
+  /** Result of findTreePath: a frame on the way up has more than one parent, so the graph must be searched */
+  protected static final int TREE_PATH_AMBIGUOUS = 2;
+
+  /**
+   * Finds the path from sourceFrame to targetFrame through their lowest common ancestor, provided that every
+   * frame on the way up from either of them has at most one parent. Both frames are followed up to their
+   * root, which gives their depths; the two chains are then compared from the root down, and the last frame
+   * they share is the lowest common ancestor F. This takes time linear in the depth of the frames and needs
+   * no queue or hashing. The path is returned in path.
+   *
+   * Returns TREE_PATH_FOUND, TREE_PATH_NOT_CONNECTED if the frames have different roots, or
+   * TREE_PATH_AMBIGUOUS if a frame with more than one parent (or a cycle) was met.
+   */
+  protected int findTreePath(Frame targetFrame, Frame sourceFrame, LookupScratch s, FramePath path) {
+    // more steps than there are frames means there is a cycle
+    int maxDepth = framesByHandle.length;
+
+    int sourceDepth = 0;
+    Frame frame = sourceFrame;
+    while (true) {
+      TimeCache[] parentCaches = frame.getParentCaches();
+      if (parentCaches.length == 0) break;
+      if (parentCaches.length > 1 || sourceDepth == maxDepth) return TREE_PATH_AMBIGUOUS;
+      s.sourceChain = append(s.sourceChain, sourceDepth++, parentCaches[0]);
+      frame = parentCaches[0].getParentFrame();
+    }
+    Frame sourceRoot = frame;
+
+    int targetDepth = 0;
+    frame = targetFrame;
+    while (true) {
+      TimeCache[] parentCaches = frame.getParentCaches();
+      if (parentCaches.length == 0) break;
+      if (parentCaches.length > 1 || targetDepth == maxDepth) return TREE_PATH_AMBIGUOUS;
+      s.targetChain = append(s.targetChain, targetDepth++, parentCaches[0]);
+      frame = parentCaches[0].getParentFrame();
+    }
 
-    // multiply all transforms from source frame to frame F TODO: right?
-    for(TransformStorage t : inverseTransforms) {
-      out.mul(StorageToStampedTransform(t));
+    if (frame != sourceRoot) {
+      // target and source frames are not connected.
+      return TREE_PATH_NOT_CONNECTED;
     }
 
-    // multiply all transforms from frame F to target frame TODO: right?
-    for(TransformStorage t : forwardTransforms) {
-      out.mul(StorageToStampedTransform(t).invert(), out);
+    // walk down from the root while both chains pass through the same frames
+    int i = sourceDepth;
+    int j = targetDepth;
+    while (i > 0 && j > 0 && s.sourceChain[i - 1].getChildFrame() == s.targetChain[j - 1].getChildFrame()) {
+      i--;
+      j--;
     }
 
-    // return transform
-    return out;
+    // the edges below the common ancestor, from the ancestor down
+    path.clear();
+    while (i > 0) {
+      path.addInverseEdge(s.sourceChain[--i]);
+    }
+    while (j > 0) {
+      path.addForwardEdge(s.targetChain[--j]);
+    }
+    return TREE_PATH_FOUND;
   }
 
   /**
-   * Returns the transform from the specified source frame at sourceTime to the target frame at a given
-   * targetTime, based on a given fixed frame; returns null if no transformation could be found.
+   * Returns the transform from the given frame to the root of its tree at the given time, composing it
+   * from the transform of the nearest ancestor that was already visited by the current ancestor walk (see
+   * LookupScratch.beginAncestorWalk). Every frame on the way is recorded, so that each edge is read at most
+   * once per walk. The state of the result is ANCESTOR_AMBIGUOUS if a frame with more than one parent (or
+   * a cycle) was met, and ANCESTOR_NO_DATA if an edge has no data.
    */
-  public StampedTransform lookupTransform(String targetID, Time targetTime, String sourceID, Time sourceTime, String fixedID) {
-    // lookup transform from source to fixed frame, at sourceTime
-    StampedTransform t1 = lookupTransform(fixedID, sourceID, sourceTime);
-    // lookup transform from fixed frame to target frame, at targetTime
-    StampedTransform t2 = lookupTransform(targetID, fixedID, targetTime);
-
-    // if either of the two transformations did not succeed, return null
-    if (t1 == null || t2 == null) return null;
+  protected AncestorTransform walkToRoot(Frame frame, long time, LookupScratch s) {
+    // more steps than there are frames means there is a cycle
+    int maxDepth = framesByHandle.length;
+
+    // collect the edges up to the first frame that is already known, or the root
+    int depth = 0;
+    Frame top = frame;
+    AncestorTransform known = s.ancestor(top);
+    while (known.walk != s.walk) {
+      TimeCache[] parentCaches = top.getParentCaches();
+      if (parentCaches.length == 0) {
+        known.set(s.walk, ANCESTOR_FOUND, top);
+        known.toRoot.setIdentity();
+        break;
+      }
+      if (parentCaches.length > 1 || depth == maxDepth) {
+        known.set(s.walk, ANCESTOR_AMBIGUOUS, null);
+        break;
+      }
+      s.sourceChain = append(s.sourceChain, depth++, parentCaches[0]);
+      top = parentCaches[0].getParentFrame();
+      known = s.ancestor(top);
+    }
 
-    // multiply transformation t2 with t1, and return
-    t2.mul(t1);
-    return t2;
+    // compose down to the given frame
+    while (depth > 0) {
+      TimeCache cache = s.sourceChain[--depth];
+      AncestorTransform child = s.ancestor(cache.getChildFrame());
+      child.set(s.walk, known.state, known.root);
+      child.extrapolated = known.extrapolated;
+      if (known.state == ANCESTOR_FOUND) {
+        if (cache.getData(time, s.sample, 0, s.bracket, 0) == TimeCache.NO_DATA) {
+          child.state = ANCESTOR_NO_DATA;
+        } else {
+          s.edge.set(s.sample, 0);
+          child.toRoot.mul(known.toRoot, s.edge);
+          child.extrapolated |= isExtrapolated(cache, time, s.bracket, 0);
+        }
+      }
+      known = child;
+    }
+    return known;
   }
 
   /**
@@ -343,33 +1600,29 @@ public class TfListener {
    * time stamps of the transforms from A to B and the given time point. This corresponds to searching for a
    * transform path that needs the least amount of inter- and extrapolation.
    *
+   * The path is returned in path. Search nodes, the queue and the visited-frame table are taken from the
+   * scratch state, so the search does not allocate.
+   *
    * Note: often in search, if we talk about expanding a search node, we say that the node expands and its
    * _children_ are added to the queue. Yet, the tf graph is stored by linking child frames to their _parent_
    * frames, not the other way around. So, if a search node is expanded, the _parent_ frames are added to the
    * queue. This may be a bit confusing.
    */
-  protected boolean lookupLists(Frame targetFrame, Frame sourceFrame, long time,
-                                LinkedList<TransformStorage> inverseTransforms, LinkedList<TransformStorage> forwardTransforms) {
+  protected boolean searchPath(Frame targetFrame, Frame sourceFrame, long time, LookupScratch s, FramePath path) {
+    s.beginSearch();
 
-    // wrap the source and target frames in search nodes
-    SearchNode<Frame> sourceNode = new SearchNode<Frame>(sourceFrame);
-    SearchNode<Frame> targetNode = new SearchNode<Frame>(targetFrame);
+    // wrap the source and target frames in search nodes, which are registered as visited
+    SearchNode<Frame> sourceNode = s.visit(sourceFrame);
+    SearchNode<Frame> targetNode = s.visit(targetFrame);
 
     // set beginning of forward path (from source)
     sourceNode.backwardStep = sourceNode;
     // set beginning of backward path (form target)
     targetNode.forwardStep = targetNode;
 
-    // create a hash map that map frames to search nodes. This is necessary to keep track of
-    // which frames have already been visited (and from which direction).
-    HashMap<Frame, SearchNode<Frame>> frameToNode = new HashMap<Frame, SearchNode<Frame>>();
-
-    // add source and target search nodes to the map
-    frameToNode.put(sourceFrame, sourceNode);
-    frameToNode.put(targetFrame, targetNode);
-
-    // create a priority queue, which will hold the search nodes ordered by cost (descending)
-    PriorityQueue<SearchNode<Frame>> Q = new PriorityQueue<SearchNode<Frame>>();
+    // the priority queue holds the search nodes ordered by cost (descending)
+    PriorityQueue<SearchNode<Frame>> Q = s.queue;
+    Q.clear();
 
     // at the source and target search nodes to the queue
     Q.add(sourceNode);
@@ -385,31 +1638,35 @@ public class TfListener {
       if (frameNode.backwardStep != null && frameNode.forwardStep != null) {
         // found the best path from source to target through FRAME.
 
-        // create inverse list (from source to FRAME)
+        // create inverse list (from FRAME to source)
+        path.clear();
         SearchNode<Frame> node = frameNode;
         while(node.content != sourceNode.content) {
-          inverseTransforms.addLast(node.backwardStep.content.getData(time, node.content));
+          path.addInverseEdge(node.backwardStep.content.getTimeCache(node.content));
           node = node.backwardStep;
         }
 
         // create forward list (from FRAME to target)
         node = frameNode;
         while(node.content != targetNode.content) {
-          forwardTransforms.addLast(node.forwardStep.content.getData(time, node.content));
+          path.addForwardEdge(node.forwardStep.content.getTimeCache(node.content));
           node = node.forwardStep;
         }
+        Q.clear();
         return true;
       }
 
       // expand search node
-      for(Frame parentFrame : frame.getParentFrames()) {
-        SearchNode<Frame> parentFrameNode = frameToNode.get(parentFrame);
+      TimeCache[] parentCaches = frame.getParentCaches();
+      for (int i = 0; i < parentCaches.length; i++) {
+        TimeCache cache = parentCaches[i];
+        Frame parentFrame = cache.getParentFrame();
+        SearchNode<Frame> parentFrameNode = s.lookup(parentFrame);
 
         boolean addToQueue = false;
         if (parentFrameNode == null) {
           // node was not yet visited
-          parentFrameNode = new SearchNode<Frame>(parentFrame);
-          frameToNode.put(parentFrame, parentFrameNode);
+          parentFrameNode = s.visit(parentFrame);
           addToQueue = true;
         } else {
           // node is already visited
@@ -418,7 +1675,7 @@ public class TfListener {
             // node was visited, but from other direction.
             // create new search node that represents this frame, visited from both sides
             // this allows the other search node of this frame to still be expanded first
-            parentFrameNode = new SearchNode<Frame>(parentFrameNode);
+            parentFrameNode = s.copy(parentFrameNode);
             addToQueue = true;
           }
         }
@@ -426,7 +1683,6 @@ public class TfListener {
         // add search node belonging to parent frame to the queue
         if (addToQueue) {
           // determine cost (based on max absolute difference in time stamp)
-          TimeCache cache = frame.getTimeCache(parentFrame);
           parentFrameNode.cost = Math.max(cache.timeToNearestTransform(time),
                                           Math.max(parentFrameNode.cost, frameNode.cost));
           // if visiting forward (from source), set backward step to remember path
@@ -443,6 +1699,25 @@ public class TfListener {
     return false;
   }
 
+  /**
+   * Fills inverseTransforms with the transformations from some frame F to sourceFrame and forwardTransforms
+   * with those from F to targetFrame, at the given time, using findPath. Returns false if no path exists.
+   */
+  protected boolean lookupLists(Frame targetFrame, Frame sourceFrame, long time,
+                                LinkedList<TransformStorage> inverseTransforms, LinkedList<TransformStorage> forwardTransforms) {
+    FramePath path = findPath(targetFrame, sourceFrame, time, scratch.get());
+    if (path == null) {
+      return false;
+    }
+    for (int i = 0; i < path.inverseCount; i++) {
+      inverseTransforms.addLast(path.inverseEdges[i].getData(time));
+    }
+    for (int i = 0; i < path.forwardCount; i++) {
+      forwardTransforms.addLast(path.forwardEdges[i].getData(time));
+    }
+    return true;
+  }
+
   /**
    * Wrapper search node that can be used for bi-directional best-first search.
    * Keeps track of search path by maintaining links to parent nodes, in both directions
@@ -463,14 +1738,24 @@ public class TfListener {
 
     /** Default constructor; sets specified content and cost to 0, steps to null. */
     SearchNode(V content) {
+      set(content);
+    }
+
+    /** Copy constructor */
+    SearchNode(SearchNode<V> orig) {
+      set(orig);
+    }
+
+    /** Resets this node to the specified content, cost 0 and null steps, so it can be reused. */
+    void set(V content) {
       this.content = content;
       this.cost = 0;
       this.backwardStep = null;
       this.forwardStep = null;
     }
 
-    /** Copy constructor */
-    SearchNode(SearchNode<V> orig) {
+    /** Resets this node to a copy of orig, so it can be reused. */
+    void set(SearchNode<V> orig) {
       this.content = orig.content;
       this.cost = orig.cost;
       this.backwardStep = orig.backwardStep;
@@ -487,6 +1772,579 @@ public class TfListener {
 
   }
 
+  /**
+   * Per-thread working memory for lookups: a pool of search nodes, the search queue, a table of visited
+   * frames indexed by handle, the resulting path and the values used to compose it. Every array only grows,
+   * so once a thread has done a few lookups, further lookups allocate nothing.
+   */
+  protected class LookupScratch {
+    /** Priority queue of the search */
+    PriorityQueue<SearchNode<Frame>> queue = new PriorityQueue<SearchNode<Frame>>();
+    /** Pool of search nodes; the first poolUsed are in use by the current search */
+    SearchNode<Frame>[] pool = newNodeArray(16);
+    int poolUsed;
+    /** Search node of each frame visited by the current search, indexed by frame handle */
+    SearchNode<Frame>[] visited = newNodeArray(64);
+    /** Search in which the entry of visited with the same index was set */
+    int[] visitedSearch = new int[64];
+    /** Number of the current search; never 0 */
+    int search;
+    /** Time caches from the source frame and from the target frame up to their roots, used by findTreePath */
+    TimeCache[] sourceChain = new TimeCache[16];
+    TimeCache[] targetChain = new TimeCache[16];
+    /** Path found by the last searchPath */
+    FramePath searchResult = new FramePath();
+    /** Lookup counters of this thread */
+    final TfMetrics.ThreadCounters counters = metrics.newThreadCounters();
+    /** Cached results of findTreePath, by (target, source) handle pair, open addressing; EMPTY_KEY if unused */
+    long[] pathKeys = new long[PATH_CACHE_SIZE];
+    FramePath[] paths = new FramePath[PATH_CACHE_SIZE];
+    int pathCount;
+    /** Topology version for which the cached paths are valid */
+    int pathVersion;
+    /** Most recently composed results, replaced least recently used first */
+    ComposedResult[] results = new ComposedResult[RESULT_CACHE_SIZE];
+    /** Incremented by every lookup in the result cache, to order the results by last use */
+    long resultTick;
+    /** Bracket of one edge, as read when validating a cached result */
+    long[] bracket = new long[2];
+    /** One sample (translation and rotation), as read from a time cache */
+    double[] sample = new double[TimeCache.SAMPLE_SIZE];
+    /** Matrix of the current edge */
+    RigidTransform edge = new RigidTransform();
+    /** Composed transform */
+    RigidTransform result = new RigidTransform();
+    /** Set by getEdge when an edge of the transform being composed was extrapolated */
+    boolean extrapolated;
+    /** Transform used by methods that do not return it, such as transformPoints and canTransform */
+    StampedTransform transform = StampedTransform.getIdentity();
+    /** Transforms to the root of each frame visited by walkToRoot, indexed by frame handle */
+    AncestorTransform[] ancestors = new AncestorTransform[64];
+    /** Number of the current ancestor walk; never 0 */
+    int walk;
+    /** First half of a lookup through a fixed frame: the transform from the source to the fixed frame */
+    RigidTransform fixedFromSource = new RigidTransform();
+    /** Inverse of the transform from the target frame to its root, used by lookupTransforms */
+    RigidTransform targetFromRoot = new RigidTransform();
+
+    /** Starts a new ancestor walk, forgetting the transforms to the root found by the previous one. */
+    void beginAncestorWalk() {
+      walk++;
+      if (walk == 0) {
+        // wrapped around: forget all old walks
+        for (AncestorTransform a : ancestors) {
+          if (a != null) a.walk = 0;
+        }
+        walk = 1;
+      }
+    }
+
+    /** Returns the ancestor walk entry of the given frame. */
+    AncestorTransform ancestor(Frame frame) {
+      int handle = frame.getHandle();
+      if (handle >= ancestors.length) {
+        ancestors = Arrays.copyOf(ancestors, Math.max(handle + 1, 2 * ancestors.length));
+      }
+      AncestorTransform a = ancestors[handle];
+      if (a == null) {
+        a = new AncestorTransform();
+        ancestors[handle] = a;
+      }
+      return a;
+    }
+
+    /** Starts a new search. */
+    void beginSearch() {
+      poolUsed = 0;
+      search++;
+      if (search == 0) {
+        // wrapped around: forget all old searches
+        Arrays.fill(visitedSearch, 0);
+        search = 1;
+      }
+    }
+
+    /** Returns the search node of the given frame in the current search, or null if it was not visited. */
+    SearchNode<Frame> lookup(Frame frame) {
+      int handle = frame.getHandle();
+      if (handle < visitedSearch.length && visitedSearch[handle] == search) {
+        return visited[handle];
+      }
+      return null;
+    }
+
+    /** Returns a fresh search node for the given frame, and registers it as the frame's search node. */
+    SearchNode<Frame> visit(Frame frame) {
+      SearchNode<Frame> node = obtain();
+      node.set(frame);
+      int handle = frame.getHandle();
+      if (handle >= visited.length) {
+        // frames were added since this table was sized
+        int length = Math.max(handle + 1, visited.length * 2);
+        SearchNode<Frame>[] newVisited = newNodeArray(length);
+        int[] newVisitedSearch = new int[length];
+        System.arraycopy(visited, 0, newVisited, 0, visited.length);
+        System.arraycopy(visitedSearch, 0, newVisitedSearch, 0, visitedSearch.length);
+        visited = newVisited;
+        visitedSearch = newVisitedSearch;
+      }
+      visited[handle] = node;
+      visitedSearch[handle] = search;
+      return node;
+    }
+
+    /** Returns a fresh copy of the given search node, without registering it. */
+    SearchNode<Frame> copy(SearchNode<Frame> orig) {
+      SearchNode<Frame> node = obtain();
+      node.set(orig);
+      return node;
+    }
+
+    /** Returns an unused search node from the pool. */
+    private SearchNode<Frame> obtain() {
+      if (poolUsed == pool.length) {
+        SearchNode<Frame>[] newPool = newNodeArray(pool.length * 2);
+        System.arraycopy(pool, 0, newPool, 0, pool.length);
+        pool = newPool;
+      }
+      SearchNode<Frame> node = pool[poolUsed];
+      if (node == null) {
+        node = new SearchNode<Frame>((Frame) null);
+        pool[poolUsed] = node;
+      }
+      poolUsed++;
+      return node;
+    }
+
+    LookupScratch() {
+      Arrays.fill(pathKeys, EMPTY_KEY);
+    }
+
+    /** Returns the cached path for key, or null if it is not cached for the given topology version. */
+    FramePath lookupPath(long key, int version) {
+      if (version != pathVersion) {
+        // the graph has changed: forget all paths
+        Arrays.fill(pathKeys, EMPTY_KEY);
+        pathCount = 0;
+        pathVersion = version;
+        return null;
+      }
+      int mask = PATH_CACHE_SIZE - 1;
+      for (int i = pathSlot(key); pathKeys[i] != EMPTY_KEY; i = (i + 1) & mask) {
+        if (pathKeys[i] == key) {
+          return paths[i];
+        }
+      }
+      return null;
+    }
+
+    /** Adds an entry for key, which must not be cached yet, and returns its (cleared) path. */
+    FramePath insertPath(long key) {
+      if (pathCount >= PATH_CACHE_SIZE * 3 / 4) {
+        // full: start over rather than keep long probe chains
+        Arrays.fill(pathKeys, EMPTY_KEY);
+        pathCount = 0;
+      }
+      int mask = PATH_CACHE_SIZE - 1;
+      int i = pathSlot(key);
+      while (pathKeys[i] != EMPTY_KEY) {
+        i = (i + 1) & mask;
+      }
+      pathKeys[i] = key;
+      pathCount++;
+      if (paths[i] == null) {
+        paths[i] = new FramePath();
+      }
+      paths[i].clear();
+      return paths[i];
+    }
+
+    /**
+     * Returns the cached result of the lookup of source in target at the given time, or null if it is not
+     * cached or no longer valid.
+     */
+    ComposedResult lookupResult(int target, int source, long time, int version) {
+      resultTick++;
+      for (int i = 0; i < RESULT_CACHE_SIZE; i++) {
+        ComposedResult r = results[i];
+        if (r != null && r.valid && r.time == time && r.target == target && r.source == source) {
+          if (r.topologyVersion == version && r.isValid(bracket)) {
+            r.lastUse = resultTick;
+            return r;
+          }
+          r.valid = false;
+          return null;
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Returns the (cleared, not yet valid) entry to use for the result of the given lookup, replacing the
+     * least recently used one.
+     */
+    ComposedResult insertResult(int target, int source, long time, int version) {
+      ComposedResult entry = null;
+      for (int i = 0; i < RESULT_CACHE_SIZE; i++) {
+        ComposedResult r = results[i];
+        if (r == null) {
+          entry = results[i] = new ComposedResult();
+          break;
+        }
+        if (!r.valid) {
+          entry = r;
+          break;
+        }
+        if (entry == null || r.lastUse < entry.lastUse) {
+          entry = r;
+        }
+      }
+      entry.clear();
+      entry.target = target;
+      entry.source = source;
+      entry.time = time;
+      entry.topologyVersion = version;
+      entry.lastUse = resultTick;
+      return entry;
+    }
+
+    /** Returns the preferred index of key in the path cache. */
+    private int pathSlot(long key) {
+      return (int) ((key * 0x9E3779B97F4A7C15L) >>> (64 - PATH_CACHE_BITS));
+    }
+  }
+
+  /** Log2 of the number of entries in each thread's path cache */
+  private static final int PATH_CACHE_BITS = 6;
+  private static final int PATH_CACHE_SIZE = 1 << PATH_CACHE_BITS;
+  /** Marks an unused entry of the path cache; handles are never negative, so keys never are */
+  private static final long EMPTY_KEY = -1L;
+  /** Number of composed results each thread keeps */
+  private static final int RESULT_CACHE_SIZE = 16;
+
+  /**
+   * Transform received by a subscriber, waiting to be inserted by the ingestion worker.
+   */
+  protected static class QueuedTransform {
+    final TransformStamped transform;
+    final boolean isStatic;
+    /** System.nanoTime() at which the transform was queued */
+    final long queueTime;
+
+    QueuedTransform(TransformStamped transform, boolean isStatic, long queueTime) {
+      this.transform = transform;
+      this.isStatic = isStatic;
+      this.queueTime = queueTime;
+    }
+  }
+
+  /**
+   * Thread that takes queued transforms in batches of at most MAX_INGEST_BATCH, inserts them without
+   * pruning, then prunes every time cache it touched once and notifies the update listeners. It parks
+   * while the queue is empty, and is woken up by wakeIngestionWorker().
+   */
+  protected class IngestionWorker extends Thread {
+    private volatile boolean running = true;
+    /** Time caches touched by the current batch */
+    private final IdentityHashMap<TimeCache, Boolean> touched = new IdentityHashMap<TimeCache, Boolean>();
+    /** Queue times of the transforms of the current batch */
+    private final long[] queueTimes = new long[MAX_INGEST_BATCH];
+
+    IngestionWorker() {
+      super("tf_ingestion");
+      setDaemon(true);
+    }
+
+    /** Lets the worker exit once it inserted all queued transforms. */
+    void shutdown() {
+      running = false;
+      LockSupport.unpark(this);
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        QueuedTransform queued = ingestQueue.poll();
+        if (queued == null) {
+          if (!running) {
+            return;
+          }
+          LockSupport.park(this);
+          continue;
+        }
+
+        long start = System.nanoTime();
+        int count = 0;
+        synchronized (insertLock) {
+          do {
+            queueTimes[count++] = queued.queueTime;
+            try {
+              TimeCache cache = applyTransform(queued.transform, queued.isStatic, false);
+              if (cache != null) {
+                touched.put(cache, Boolean.TRUE);
+              }
+            } catch (RuntimeException e) {
+//              ros.logError("Ignoring malformed transform: " + e);
+            }
+          } while (count < MAX_INGEST_BATCH && (queued = ingestQueue.poll()) != null);
+
+          for (TimeCache cache : touched.keySet()) {
+            cache.prune();
+          }
+          touched.clear();
+          // the whole batch becomes visible to snapshots at once
+          publishedEpoch++;
+        }
+        metrics.ingestQueueDepth.addAndGet(-count);
+        enforceMemoryBudget();
+        transformsUpdated();
+
+        long end = System.nanoTime();
+        metrics.ingested.addAndGet(count);
+        metrics.ingestBatches.incrementAndGet();
+        metrics.ingestApplyNanos.addAndGet(end - start);
+        for (int i = 0; i < count; i++) {
+          metrics.recordIngestLatency(end - queueTimes[i]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Request of waitForTransform. Completed at most once, either with the transform, with null when it
+   * times out, or by cancellation; timing out is detected lazily, by whoever checks the request next.
+   */
+  protected static class PendingTransform implements Future<StampedTransform> {
+    final String targetFrameID;
+    final String sourceFrameID;
+    final Time time;
+    /** System.nanoTime() at which the request times out */
+    final long deadline;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile StampedTransform result;
+    private volatile boolean cancelled;
+
+    PendingTransform(String targetFrameID, String sourceFrameID, Time time, long deadline) {
+      this.targetFrameID = targetFrameID;
+      this.sourceFrameID = sourceFrameID;
+      this.time = time;
+      this.deadline = deadline;
+    }
+
+    /** Completes this request with the given result, unless it is done already. */
+    synchronized boolean complete(StampedTransform result) {
+      if (done.getCount() == 0) {
+        return false;
+      }
+      this.result = result;
+      done.countDown();
+      return true;
+    }
+
+    @Override
+    public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+      if (done.getCount() == 0) {
+        return false;
+      }
+      cancelled = true;
+      done.countDown();
+      return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return cancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+      if (done.getCount() > 0 && System.nanoTime() - deadline >= 0) {
+        complete(null);
+      }
+      return done.getCount() == 0;
+    }
+
+    /** Waits until the transform is available or the request times out, in which case null is returned. */
+    @Override
+    public StampedTransform get() throws InterruptedException {
+      done.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+      isDone();
+      return getResult();
+    }
+
+    @Override
+    public StampedTransform get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+      long wait = Math.min(unit.toNanos(timeout), deadline - System.nanoTime());
+      done.await(wait, TimeUnit.NANOSECONDS);
+      if (!isDone()) {
+        throw new TimeoutException();
+      }
+      return getResult();
+    }
+
+    private StampedTransform getResult() {
+      if (cancelled) {
+        throw new CancellationException();
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Composed result of a lookup, together with what it was computed from: for every edge on the path, the
+   * version and replace count of its time cache and the time stamps of the samples it was interpolated
+   * between. The result stays valid until one of those brackets changes.
+   */
+  protected static class ComposedResult {
+    int target;
+    int source;
+    long time;
+    int topologyVersion;
+    /** False while the result is being composed, or once it was found to be outdated */
+    boolean valid;
+    /** True if the result was extrapolated on at least one edge */
+    boolean extrapolated;
+    long lastUse;
+    RigidTransform transform = new RigidTransform();
+    TimeCache[] edges = new TimeCache[8];
+    int[] versions = new int[8];
+    int[] replaceCounts = new int[8];
+    /** Two time stamps per edge */
+    long[] brackets = new long[16];
+    int edgeCount;
+
+    void clear() {
+      valid = false;
+      extrapolated = false;
+      edgeCount = 0;
+    }
+
+    /** Adds the given edge, recording the current state of its cache, and returns its index. */
+    int addEdge(TimeCache cache) {
+      if (edgeCount == edges.length) {
+        int length = edges.length * 2;
+        edges = append(edges, edgeCount, cache);
+        int[] newVersions = new int[length];
+        int[] newReplaceCounts = new int[length];
+        long[] newBrackets = new long[2 * length];
+        System.arraycopy(versions, 0, newVersions, 0, edgeCount);
+        System.arraycopy(replaceCounts, 0, newReplaceCounts, 0, edgeCount);
+        System.arraycopy(brackets, 0, newBrackets, 0, 2 * edgeCount);
+        versions = newVersions;
+        replaceCounts = newReplaceCounts;
+        brackets = newBrackets;
+      }
+      edges[edgeCount] = cache;
+      // read before the data, so a concurrent insert makes the entry look outdated rather than valid
+      versions[edgeCount] = cache.getVersion();
+      replaceCounts[edgeCount] = cache.getReplaceCount();
+      return edgeCount++;
+    }
+
+    /**
+     * Returns true if no edge received data that changes its bracket at this result's time. Edges whose
+     * cache has changed, but not around this time, are marked as checked against the new version.
+     */
+    boolean isValid(long[] bracket) {
+      for (int i = 0; i < edgeCount; i++) {
+        TimeCache cache = edges[i];
+        int version = cache.getVersion();
+        if (version == versions[i]) {
+          continue;
+        }
+        if (cache.getReplaceCount() != replaceCounts[i]
+            || !cache.getBracket(time, bracket, 0)
+            || bracket[0] != brackets[2 * i] || bracket[1] != brackets[2 * i + 1]) {
+          return false;
+        }
+        versions[i] = version;
+      }
+      return true;
+    }
+  }
+
+  /** States of an AncestorTransform */
+  protected static final int ANCESTOR_FOUND = 0;
+  protected static final int ANCESTOR_NO_DATA = 1;
+  protected static final int ANCESTOR_AMBIGUOUS = 2;
+
+  /**
+   * Transform from a frame to the root of its tree, as found by walkToRoot.
+   */
+  protected static class AncestorTransform {
+    /** Ancestor walk in which this entry was set */
+    int walk;
+    /** One of ANCESTOR_FOUND, ANCESTOR_NO_DATA and ANCESTOR_AMBIGUOUS */
+    int state;
+    /** Root of the tree; null if the state is ANCESTOR_AMBIGUOUS */
+    Frame root;
+    /** True if any edge up to the root was extrapolated */
+    boolean extrapolated;
+    RigidTransform toRoot = new RigidTransform();
+
+    void set(int walk, int state, Frame root) {
+      this.walk = walk;
+      this.state = state;
+      this.root = root;
+      this.extrapolated = false;
+    }
+  }
+
+  /**
+   * Path from a source frame to a target frame: the time caches from some frame F down to the source frame
+   * (inverse edges) and from F down to the target frame (forward edges), both ordered from F down.
+   */
+  protected static class FramePath {
+    TimeCache[] inverseEdges = new TimeCache[8];
+    int inverseCount;
+    TimeCache[] forwardEdges = new TimeCache[8];
+    int forwardCount;
+    /** For cached paths: the result of findTreePath that produced this path */
+    int result;
+
+    void clear() {
+      inverseCount = 0;
+      forwardCount = 0;
+    }
+
+    void addInverseEdge(TimeCache cache) {
+      inverseEdges = append(inverseEdges, inverseCount++, cache);
+    }
+
+    void addForwardEdge(TimeCache cache) {
+      forwardEdges = append(forwardEdges, forwardCount++, cache);
+    }
+  }
+
+  /**
+   * Stores cache at the given index of edges, and returns edges, or a larger copy of it if it was full.
+   */
+  private static TimeCache[] append(TimeCache[] edges, int index, TimeCache cache) {
+    if (index == edges.length) {
+      TimeCache[] newEdges = new TimeCache[edges.length * 2];
+      System.arraycopy(edges, 0, newEdges, 0, index);
+      edges = newEdges;
+    }
+    edges[index] = cache;
+    return edges;
+  }
+
+  /**
+   * Creates an array of search nodes (generic arrays cannot be created directly).
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private SearchNode<Frame>[] newNodeArray(int length) {
+    return new SearchNode[length];
+  }
+
+  /** Working memory of lookups, one per thread */
+  private final ThreadLocal<LookupScratch> scratch = new ThreadLocal<LookupScratch>() {
+    @Override
+    protected LookupScratch initialValue() {
+      return new LookupScratch();
+    }
+  };
+
   /* **********************************************************************
    * *                          HELPER METHODS                            *
    * ********************************************************************** */
@@ -534,13 +2392,67 @@ public class TfListener {
 
   /**
    * Converts the TransformStorage datastructure (represented by quaternion and vector) to
-   * the StampedTransform datastructure (represented by a 4x4 matrix)
+   * the StampedTransform datastructure
    */
   protected StampedTransform StorageToStampedTransform(TransformStorage ts) {
     return new StampedTransform(ts.getTranslation(), ts.getRotation(), new Time(ts.getTimeStamp()),
                                 ts.getParentFrame().getFrameID(), ts.getChildFrame().getFrameID());
   }
 
+  /**
+   * Sets s.edge to the transformation stored in cache at the given time, as of the given epoch, and sets
+   * s.extrapolated if it was extrapolated; returns false if the cache has no data. Unless entry is null, the
+   * edge is added to it, so that the entry can later tell whether the result is still valid.
+   */
+  private static boolean getEdge(TimeCache cache, long time, long epoch, LookupScratch s, ComposedResult entry) {
+    double[] v = s.sample;
+    long[] bracket = s.bracket;
+    int offset = 0;
+    if (entry != null) {
+      // adding the edge may grow the brackets
+      offset = 2 * entry.addEdge(cache);
+      bracket = entry.brackets;
+    }
+    if (cache.getData(time, v, 0, bracket, offset, epoch) == TimeCache.NO_DATA) {
+      return false;
+    }
+    if (isExtrapolated(cache, time, bracket, offset)) {
+      s.extrapolated = true;
+    }
+    s.edge.set(v, 0);
+    return true;
+  }
+
+  /**
+   * Counts a lookup that failed because a frame does not exist.
+   */
+  private void countUnknownFrame() {
+    TfMetrics.ThreadCounters counters = scratch.get().counters;
+    counters.increment(TfMetrics.LOOKUPS);
+    counters.increment(TfMetrics.UNKNOWN_FRAME);
+  }
+
+  /**
+   * Returns true if a value read from cache at the given time, between the samples whose time stamps were
+   * written to bracket at offset, was extrapolated.
+   */
+  private static boolean isExtrapolated(TimeCache cache, long time, long[] bracket, int offset) {
+    // a static transform holds at all times
+    return (time < bracket[offset] || time > bracket[offset + 1]) && !(cache instanceof StaticTimeCache);
+  }
+
+  /**
+   * Sets the time stamp of out to the given time in nanoseconds, reusing its Time object if it has one.
+   */
+  private static void setTimeStamp(StampedTransform out, long time) {
+    if (out.timeStamp == null) {
+      out.timeStamp = Time.fromNano(time);
+    } else {
+      out.timeStamp.secs = (int) (time / 1000000000L);
+      out.timeStamp.nsecs = (int) (time % 1000000000L);
+    }
+  }
+
   /**
    * Returns the resolves version of the given frame ID, and asserts a debug message if the name
    * was not fully resolved.
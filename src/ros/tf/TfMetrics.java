@@ -0,0 +1,342 @@
+/* 
+ * Copyright (c) 2011, Sjoerd van den Dries
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Technische Universiteit Eindhoven nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package ros.tf;
+
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Metrics of a TfListener: counters for inserted and rejected transforms, for lookups and their failures by
+ * reason, for interpolated versus extrapolated results, ingestion and eviction statistics, and latency
+ * histograms. Use TfListener.getMetrics().snapshot() or TfListener.getMetricsSnapshot() to read them.
+ * 
+ * The metrics are always on, so they have to be cheap. Lookups may run on many threads at once, so every
+ * thread counts its lookups in counters of its own, which only it writes and which are summed when a
+ * snapshot is taken; and only one in LATENCY_SAMPLE_INTERVAL lookups is timed. When a snapshot finds that
+ * a thread has terminated, its counts are added to shared totals and its counters are dropped, so threads
+ * that come and go, such as callback or executor threads, do not pile up. Ingestion runs on a single
+ * thread, so its counters are plain atomics.
+ * 
+ * Latency histograms have 64 buckets; bucket i counts latencies in [2^(i-1), 2^i) nanoseconds, bucket 0
+ * latencies of 0.
+ */
+public class TfMetrics {
+    
+    /** One in this many lookups is timed for the lookup latency histogram */
+    public static final int LATENCY_SAMPLE_INTERVAL = 16;
+    /** Number of buckets of the latency histograms */
+    public static final int HISTOGRAM_BUCKETS = 64;
+    
+    // indices of the per-thread lookup counters
+    static final int LOOKUPS = 0;
+    static final int CACHE_HITS = 1;
+    static final int CACHE_MISSES = 2;
+    static final int INTERPOLATED = 3;
+    static final int EXTRAPOLATED = 4;
+    static final int UNKNOWN_FRAME = 5;
+    static final int NOT_CONNECTED = 6;
+    static final int NO_DATA = 7;
+    private static final int LOOKUP_COUNTERS = 8;
+    
+    /**
+     * Lookup counters and lookup latency histogram of one thread. Only written by that thread, with lazySet,
+     * so counting costs no more than a plain store.
+     */
+    static class ThreadCounters {
+        private final AtomicLongArray counts = new AtomicLongArray(LOOKUP_COUNTERS);
+        private final AtomicLongArray latency = new AtomicLongArray(HISTOGRAM_BUCKETS);
+        /** The thread that writes these counters; weak, so the counters do not keep it from being collected */
+        private final WeakReference<Thread> owner = new WeakReference<Thread>(Thread.currentThread());
+        private int countdown;
+        
+        /** Returns true if the owner has terminated, so the counters will not change anymore. */
+        boolean isRetired() {
+            Thread thread = owner.get();
+            return thread == null || !thread.isAlive();
+        }
+        
+        void increment(int counter) {
+            counts.lazySet(counter, counts.get(counter) + 1);
+        }
+        
+        /** Returns true if the current lookup should be timed. */
+        boolean sample() {
+            if (--countdown <= 0) {
+                countdown = LATENCY_SAMPLE_INTERVAL;
+                return true;
+            }
+            return false;
+        }
+        
+        void recordLatency(long nanos) {
+            int bucket = bucket(nanos);
+            latency.lazySet(bucket, latency.get(bucket) + 1);
+        }
+    }
+    
+    /** Counters of all live threads that did lookups; pruned and summed while holding its lock */
+    private final CopyOnWriteArrayList<ThreadCounters> threadCounters = new CopyOnWriteArrayList<ThreadCounters>();
+    /** Sum of the lookup counters and latency histograms of the threads that have terminated */
+    private final long[] retiredCounts = new long[LOOKUP_COUNTERS];
+    private final long[] retiredLatency = new long[HISTOGRAM_BUCKETS];
+    
+    final AtomicLong inserts = new AtomicLong();
+    final AtomicLong rejectedOldData = new AtomicLong();
+    final AtomicLong selfTransforms = new AtomicLong();
+    final AtomicLong missingFrameIDs = new AtomicLong();
+    final AtomicLong ingested = new AtomicLong();
+    final AtomicLong ingestBatches = new AtomicLong();
+    final AtomicLong ingestApplyNanos = new AtomicLong();
+    final AtomicLong evicted = new AtomicLong();
+    final AtomicInteger ingestQueueDepth = new AtomicInteger();
+    volatile int maxIngestQueueDepth;
+    volatile long maxIngestLatencyNanos;
+    /** Time from queueing a transform to the end of the batch that inserted it */
+    final AtomicLongArray ingestLatency = new AtomicLongArray(HISTOGRAM_BUCKETS);
+    
+    /**
+     * Returns new lookup counters for the current thread, which are included in all further snapshots. The
+     * TfListener keeps them in the thread's lookup scratch state.
+     */
+    ThreadCounters newThreadCounters() {
+        ThreadCounters c = new ThreadCounters();
+        threadCounters.add(c);
+        return c;
+    }
+    
+    /**
+     * Records a queue depth of the ingestion queue.
+     */
+    void recordIngestQueueDepth(int depth) {
+        if (depth > maxIngestQueueDepth) {
+            // racy, but only the subscriber threads write it, and it only serves as a statistic
+            maxIngestQueueDepth = depth;
+        }
+    }
+    
+    /**
+     * Records the time from queueing a transform to the end of the batch that inserted it.
+     */
+    void recordIngestLatency(long nanos) {
+        ingestLatency.incrementAndGet(bucket(nanos));
+        if (nanos > maxIngestLatencyNanos) {
+            maxIngestLatencyNanos = nanos;
+        }
+    }
+    
+    /**
+     * Returns the histogram bucket of the given latency.
+     */
+    static int bucket(long nanos) {
+        return nanos <= 0 ? 0 : Math.min(HISTOGRAM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos));
+    }
+    
+    /**
+     * Returns the sum of the given lookup counter over all threads.
+     */
+    long lookupCount(int counter) {
+        synchronized (threadCounters) {
+            pruneRetiredThreads();
+            long sum = retiredCounts[counter];
+            for (ThreadCounters c : threadCounters) {
+                sum += c.counts.get(counter);
+            }
+            return sum;
+        }
+    }
+    
+    /**
+     * Adds the counters of the threads that have terminated to the retired totals and drops them. Call
+     * while holding the lock of threadCounters.
+     */
+    private void pruneRetiredThreads() {
+        for (ThreadCounters c : threadCounters) {
+            if (c.isRetired()) {
+                for (int i = 0; i < LOOKUP_COUNTERS; i++) {
+                    retiredCounts[i] += c.counts.get(i);
+                }
+                for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+                    retiredLatency[i] += c.latency.get(i);
+                }
+                threadCounters.remove(c);
+            }
+        }
+    }
+    
+    /**
+     * Takes a snapshot of all metrics, without per-edge statistics.
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(this, Collections.<EdgeMemoryUsage>emptyList());
+    }
+    
+    /**
+     * Values of all metrics at one point in time. Counters of different threads are read one after the
+     * other, so the snapshot is not atomic, but every counter is at least as recent as the time the snapshot
+     * was started.
+     */
+    public static class Snapshot {
+        /** Transforms inserted into the buffer */
+        public final long inserts;
+        /** Transforms ignored because they were older than the storage time (TF_OLD_DATA) */
+        public final long rejectedOldData;
+        /** Transforms ignored because their frame and child frame were the same (TF_SELF_TRANSFORM) */
+        public final long selfTransforms;
+        /** Transforms ignored because their frame or child frame was not set (TF_NO_FRAME_ID) */
+        public final long missingFrameIDs;
+        /** Lookups, including failed ones */
+        public final long lookups;
+        /** Lookups answered from the composed-result cache */
+        public final long resultCacheHits;
+        /** Lookups between different frames that had to compose their result */
+        public final long resultCacheMisses;
+        /** Successful lookups that needed no extrapolation on any edge */
+        public final long interpolated;
+        /** Successful lookups that extrapolated on at least one edge */
+        public final long extrapolated;
+        /** Lookups that failed because a frame did not exist */
+        public final long failedUnknownFrame;
+        /** Lookups that failed because the frames were not connected */
+        public final long failedNotConnected;
+        /** Lookups that failed because an edge on the path had no data */
+        public final long failedNoData;
+        /** Histogram of the latency of a sample of lookups */
+        public final long[] lookupLatency = new long[HISTOGRAM_BUCKETS];
+        /** Transforms taken from the ingestion queue */
+        public final long ingested;
+        /** Batches applied by the ingestion worker */
+        public final long ingestBatches;
+        /** Time spent applying batches, in nanoseconds */
+        public final long ingestApplyNanos;
+        /** Transforms waiting in the ingestion queue */
+        public final int ingestQueueDepth;
+        /** Largest number of transforms that waited in the ingestion queue at the same time */
+        public final int maxIngestQueueDepth;
+        /** Longest time from queueing a transform to the end of the batch that inserted it, in nanoseconds */
+        public final long maxIngestLatencyNanos;
+        /** Histogram of the time from queueing a transform to the end of the batch that inserted it */
+        public final long[] ingestLatency = new long[HISTOGRAM_BUCKETS];
+        /** Transforms evicted to stay within the memory budget */
+        public final long evicted;
+        /** Rate and memory usage per edge; empty if taken by TfMetrics.snapshot() */
+        public final List<EdgeMemoryUsage> edges;
+        
+        Snapshot(TfMetrics m, List<EdgeMemoryUsage> edges) {
+            inserts = m.inserts.get();
+            rejectedOldData = m.rejectedOldData.get();
+            selfTransforms = m.selfTransforms.get();
+            missingFrameIDs = m.missingFrameIDs.get();
+            long[] counts;
+            synchronized (m.threadCounters) {
+                m.pruneRetiredThreads();
+                counts = m.retiredCounts.clone();
+                System.arraycopy(m.retiredLatency, 0, lookupLatency, 0, HISTOGRAM_BUCKETS);
+                for (ThreadCounters c : m.threadCounters) {
+                    for (int i = 0; i < LOOKUP_COUNTERS; i++) {
+                        counts[i] += c.counts.get(i);
+                    }
+                    for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+                        lookupLatency[i] += c.latency.get(i);
+                    }
+                }
+            }
+            lookups = counts[LOOKUPS];
+            resultCacheHits = counts[CACHE_HITS];
+            resultCacheMisses = counts[CACHE_MISSES];
+            interpolated = counts[INTERPOLATED];
+            extrapolated = counts[EXTRAPOLATED];
+            failedUnknownFrame = counts[UNKNOWN_FRAME];
+            failedNotConnected = counts[NOT_CONNECTED];
+            failedNoData = counts[NO_DATA];
+            ingested = m.ingested.get();
+            ingestBatches = m.ingestBatches.get();
+            ingestApplyNanos = m.ingestApplyNanos.get();
+            ingestQueueDepth = m.ingestQueueDepth.get();
+            maxIngestQueueDepth = m.maxIngestQueueDepth;
+            maxIngestLatencyNanos = m.maxIngestLatencyNanos;
+            for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+                ingestLatency[i] = m.ingestLatency.get(i);
+            }
+            evicted = m.evicted.get();
+            this.edges = edges;
+        }
+        
+        /**
+         * Returns an upper bound of the given percentile (0 to 100) of the latencies in histogram, in
+         * nanoseconds, or 0 if the histogram is empty.
+         */
+        public static long percentile(long[] histogram, double percentile) {
+            long total = 0;
+            for (long count : histogram) {
+                total += count;
+            }
+            long rank = (long) Math.ceil(total * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < histogram.length; i++) {
+                seen += histogram[i];
+                if (seen >= rank && seen > 0) {
+                    return i == 0 ? 0 : (i >= 63 ? Long.MAX_VALUE : 1L << i);
+                }
+            }
+            return 0;
+        }
+        
+        /**
+         * Returns a string that contains the values of this snapshot.
+         */
+        @Override
+        public String toString() {
+            StringBuilder s = new StringBuilder();
+            s.append("inserts ").append(inserts).append(", rejected old data ").append(rejectedOldData)
+             .append(", self transforms ").append(selfTransforms).append(", missing frame IDs ").append(missingFrameIDs)
+             .append("\nlookups ").append(lookups).append(" (cache hits ").append(resultCacheHits)
+             .append(", misses ").append(resultCacheMisses).append("), interpolated ").append(interpolated)
+             .append(", extrapolated ").append(extrapolated).append(", failed: unknown frame ").append(failedUnknownFrame)
+             .append(", not connected ").append(failedNotConnected).append(", no data ").append(failedNoData)
+             .append("\nlookup latency p50 <").append(percentile(lookupLatency, 50))
+             .append(" ns, p99 <").append(percentile(lookupLatency, 99)).append(" ns")
+             .append("\ningested ").append(ingested).append(" in ").append(ingestBatches).append(" batches, queue ")
+             .append(ingestQueueDepth).append(" (max ").append(maxIngestQueueDepth).append("), latency p99 <")
+             .append(percentile(ingestLatency, 99)).append(" ns (max ").append(maxIngestLatencyNanos)
+             .append(" ns), evicted ").append(evicted);
+            for (EdgeMemoryUsage edge : edges) {
+                s.append("\n").append(edge);
+            }
+            return s.toString();
+        }
+    }
+    
+}
@@ -0,0 +1,185 @@
+/* 
+ * Copyright (c) 2011, Sjoerd van den Dries
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Technische Universiteit Eindhoven nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package ros.tf;
+
+import geometry_msgs.Quaternion;
+import geometry_msgs.TransformStamped;
+import geometry_msgs.Vector3;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Records transforms to a compact, append-only binary log, which can be played back into a TfListener by a
+ * TfReplayer. Pass a recorder to TfListener.setRecorder() to record all transforms it receives.
+ * 
+ * The log starts with MAGIC and VERSION (both ints), followed by records of two types, each starting with
+ * its type byte:
+ * 
+ * - FRAME: int handle, int length and the UTF-8 bytes of the frame ID. Written before the first transform
+ *   that uses the frame, assigning it the handle that transform records refer to it by.
+ * - TRANSFORM: byte flags (FLAG_STATIC), int parent frame handle, int child frame handle, long time stamp
+ *   in nanoseconds, long time of recording in nanoseconds since the recorder was created, and seven
+ *   doubles: translation (x, y, z) and rotation (x, y, z, w).
+ * 
+ * All values are big-endian. If writing fails, the recorder stops recording, and getError() returns the
+ * cause; record() does not throw, so it can be called from a subscriber thread.
+ */
+public class TfRecorder {
+    
+    /** First int of a tf log */
+    public static final int MAGIC = 0x54464c47; // "TFLG"
+    /** Version of the log format */
+    public static final int VERSION = 1;
+    /** Type of a record that assigns a handle to a frame ID */
+    public static final byte FRAME = 1;
+    /** Type of a record holding a transform */
+    public static final byte TRANSFORM = 2;
+    /** Flag of a transform record that holds a static transform */
+    public static final byte FLAG_STATIC = 1;
+    
+    private final DataOutputStream out;
+    /** Handles of the frame IDs written so far */
+    private final HashMap<String, Integer> handles = new HashMap<String, Integer>();
+    /** System.nanoTime() at which the recorder was created */
+    private final long startTime;
+    private long recordCount;
+    private IOException error;
+    private boolean closed;
+    
+    /**
+     * Class constructor; creates or overwrites the given file and writes the header.
+     */
+    public TfRecorder(File file) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        startTime = System.nanoTime();
+    }
+    
+    /**
+     * Records the given transform, as received from tf or static tf.
+     */
+    public void record(TransformStamped transform, boolean isStatic) {
+        Vector3 t = transform.getTransform().getTranslation();
+        Quaternion r = transform.getTransform().getRotation();
+        record(transform.getHeader().getFrameId(), transform.getChildFrameId(),
+               transform.getHeader().getStamp().totalNsecs(),
+               t.getX(), t.getY(), t.getZ(), r.getX(), r.getY(), r.getZ(), r.getW(), isStatic);
+    }
+    
+    /**
+     * Records the transform from frame childFrameID to frame frameID at the given time in nanoseconds.
+     */
+    public synchronized void record(String frameID, String childFrameID, long time,
+                                    double tx, double ty, double tz,
+                                    double qx, double qy, double qz, double qw, boolean isStatic) {
+        if (closed || error != null) {
+            return;
+        }
+        long recordTime = System.nanoTime() - startTime;
+        try {
+            int parent = handle(frameID);
+            int child = handle(childFrameID);
+            out.writeByte(TRANSFORM);
+            out.writeByte(isStatic ? FLAG_STATIC : 0);
+            out.writeInt(parent);
+            out.writeInt(child);
+            out.writeLong(time);
+            out.writeLong(recordTime);
+            out.writeDouble(tx);
+            out.writeDouble(ty);
+            out.writeDouble(tz);
+            out.writeDouble(qx);
+            out.writeDouble(qy);
+            out.writeDouble(qz);
+            out.writeDouble(qw);
+            recordCount++;
+        } catch (IOException e) {
+            error = e;
+        }
+    }
+    
+    /**
+     * Returns the handle of the given frame ID, writing a FRAME record first if it has none yet.
+     */
+    private int handle(String frameID) throws IOException {
+        Integer handle = handles.get(frameID);
+        if (handle == null) {
+            handle = handles.size();
+            byte[] name = frameID.getBytes("UTF-8");
+            out.writeByte(FRAME);
+            out.writeInt(handle);
+            out.writeInt(name.length);
+            out.write(name);
+            handles.put(frameID, handle);
+        }
+        return handle;
+    }
+    
+    /**
+     * Writes all buffered records to the file.
+     */
+    public synchronized void flush() throws IOException {
+        if (!closed) {
+            out.flush();
+        }
+    }
+    
+    /**
+     * Writes all buffered records and closes the file; further transforms are not recorded.
+     */
+    public synchronized void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            out.close();
+        }
+    }
+    
+    /**
+     * Returns the number of transforms recorded.
+     */
+    public synchronized long getRecordCount() {
+        return recordCount;
+    }
+    
+    /**
+     * Returns the error that stopped recording, or null if there was none.
+     */
+    public synchronized IOException getError() {
+        return error;
+    }
+    
+}
@@ -0,0 +1,144 @@
+/* 
+ * Copyright (c) 2011, Sjoerd van den Dries
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Technische Universiteit Eindhoven nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package ros.tf;
+
+import javax.vecmath.Quat4d;
+import javax.vecmath.Vector3d;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * Plays back a log written by a TfRecorder into a TfListener, at the recorded speed or as fast as possible.
+ * 
+ * The log is memory-mapped, so playing it back does no file I/O calls and allocates little more than the
+ * TfListener itself does per transform; this makes a recorded log a deterministic input for measuring
+ * lookup and ingestion performance without a robot or network. A log that ends in a partially written
+ * record, as when the recording process was killed, is played back up to that record.
+ */
+public class TfReplayer {
+    
+    /** Size of the log header: MAGIC and VERSION */
+    private static final int HEADER_SIZE = 8;
+    
+    private final File file;
+    private final MappedByteBuffer buffer;
+    
+    /**
+     * Class constructor; maps the given log into memory and checks its header.
+     */
+    public TfReplayer(File file) throws IOException {
+        this.file = file;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != TfRecorder.MAGIC) {
+            throw new IOException("Not a tf log: " + file);
+        }
+        if (buffer.getInt(4) != TfRecorder.VERSION) {
+            throw new IOException("Unsupported tf log version " + buffer.getInt(4) + ": " + file);
+        }
+    }
+    
+    /**
+     * Inserts all transforms in the log into listener, in the recorded order, using
+     * TfListener.setTransform(String, String, long, Vector3d, Quat4d, boolean), and returns the number of
+     * transforms played back. If speed is positive, transforms are inserted at the times they were recorded
+     * at, relative to the start of the playback, divided by speed (so 1 is the recorded speed); otherwise,
+     * they are inserted as fast as possible.
+     */
+    public int replay(TfListener listener, double speed) throws IOException, InterruptedException {
+        ByteBuffer b = buffer.duplicate();
+        b.position(HEADER_SIZE);
+        ArrayList<String> frameIDs = new ArrayList<String>();
+        // only the values are copied when a transform is inserted, so these can be reused
+        Vector3d translation = new Vector3d();
+        Quat4d rotation = new Quat4d();
+        long start = System.nanoTime();
+        int count = 0;
+        
+        try {
+            while (b.hasRemaining()) {
+                int offset = b.position();
+                byte type = b.get();
+                if (type == TfRecorder.FRAME) {
+                    int handle = b.getInt();
+                    int length = b.getInt();
+                    if (length < 0 || length > b.remaining()) {
+                        break; // partially written record
+                    }
+                    byte[] name = new byte[length];
+                    b.get(name);
+                    if (handle != frameIDs.size()) {
+                        throw new IOException("Corrupt tf log at offset " + offset + ": " + file);
+                    }
+                    frameIDs.add(new String(name, "UTF-8"));
+                } else if (type == TfRecorder.TRANSFORM) {
+                    boolean isStatic = (b.get() & TfRecorder.FLAG_STATIC) != 0;
+                    int parent = b.getInt();
+                    int child = b.getInt();
+                    long time = b.getLong();
+                    long recordTime = b.getLong();
+                    translation.set(b.getDouble(), b.getDouble(), b.getDouble());
+                    rotation.set(b.getDouble(), b.getDouble(), b.getDouble(), b.getDouble());
+                    if (parent < 0 || parent >= frameIDs.size() || child < 0 || child >= frameIDs.size()) {
+                        throw new IOException("Corrupt tf log at offset " + offset + ": " + file);
+                    }
+                    if (speed > 0) {
+                        long wait = start + (long) (recordTime / speed) - System.nanoTime();
+                        if (wait > 0) {
+                            Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                        }
+                    }
+                    listener.setTransform(frameIDs.get(parent), frameIDs.get(child), time, translation, rotation,
+                                          isStatic);
+                    count++;
+                } else {
+                    throw new IOException("Corrupt tf log at offset " + offset + ": " + file);
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            // the last record was not completely written
+        }
+        return count;
+    }
+    
+}
@@ -0,0 +1,105 @@
+/* 
+ * Copyright (c) 2011, Sjoerd van den Dries
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Technische Universiteit Eindhoven nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package ros.tf;
+
+import org.ros.message.Time;
+
+/**
+ * Read-only view of the buffer of a TfListener as it was when the snapshot was taken; see
+ * TfListener.snapshot(). Lookups through a snapshot only use the transforms that were inserted before it
+ * was taken, so that all lookups of, for instance, one render pass see the same state of tf, even while
+ * the ingestion worker keeps inserting. A batch of the ingestion worker becomes visible as a whole.
+ * 
+ * A snapshot does not copy or lock anything; it only remembers the insert epoch of the buffer. As a
+ * consequence, transforms that are pruned or evicted after the snapshot was taken disappear from it too,
+ * and a transform that replaces one with the same time stamp (or a static transform) is seen with its new
+ * value. Neither affects lookups near the newest data, which is what a render pass asks for. Lookups
+ * through a snapshot do not use the result cache of the listener.
+ */
+public class TfSnapshot {
+    
+    private final TfListener listener;
+    private final long epoch;
+    
+    /**
+     * Class Constructor, for the state of listener at the end of the given insert epoch.
+     */
+    TfSnapshot(TfListener listener, long epoch) {
+        this.listener = listener;
+        this.epoch = epoch;
+    }
+    
+    /**
+     * Returns the insert epoch this snapshot shows the buffer at.
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+    
+    /**
+     * Returns the transform from the specified source frame to the target frame at the given time, as of
+     * this snapshot; returns null if no transformation could be found.
+     */
+    public StampedTransform lookupTransform(String targetFrameID, String sourceFrameID, Time time) {
+        StampedTransform out = StampedTransform.getIdentity();
+        if (!lookupTransform(targetFrameID, sourceFrameID, time, out)) {
+            return null;
+        }
+        return out;
+    }
+    
+    /**
+     * Looks up the transform from the specified source frame to the target frame at the given time, as of
+     * this snapshot, and writes it to out; returns false, leaving out unchanged, if no transformation could
+     * be found. If the frame IDs are fully resolved, this does not allocate.
+     */
+    public boolean lookupTransform(String targetFrameID, String sourceFrameID, Time time, StampedTransform out) {
+        return listener.lookupTransform(targetFrameID, sourceFrameID, time, epoch, out);
+    }
+    
+    /**
+     * Looks up the transform from the frame with handle sourceFrame to the frame with handle targetFrame at
+     * the given time in nanoseconds, as of this snapshot, and writes it to out; returns false, leaving out
+     * unchanged, if no transformation could be found. Does not allocate.
+     */
+    public boolean lookupTransform(int targetFrame, int sourceFrame, long time, StampedTransform out) {
+        return listener.lookupTransform(targetFrame, sourceFrame, time, epoch, out);
+    }
+    
+    /**
+     * Returns true if the transform from the specified source frame to the target frame at the given time
+     * can be looked up in this snapshot. If the frame IDs are fully resolved, this does not allocate.
+     */
+    public boolean canTransform(String targetFrameID, String sourceFrameID, Time time) {
+        return listener.canTransform(targetFrameID, sourceFrameID, time, epoch);
+    }
+    
+}
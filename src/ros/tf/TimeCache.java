@@ -30,18 +30,71 @@
 
 package ros.tf;
 
-import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import javax.vecmath.Quat4d;
+import javax.vecmath.Vector3d;
 
 /**
  * Buffer in which transformations from one specific frame to another are stored, ordered in time. 
  * 
+ * Samples are kept in a circular buffer of primitives rather than as TransformStorage objects: one
+ * long[] holding the time stamps and one double[] holding, per sample, the translation (x, y, z)
+ * followed by the rotation quaternion (x, y, z, w). Lookups use binary search on the time stamps.
+ * The buffer grows by doubling when full, so in steady state inserting and pruning do not allocate. When
+ * pruning or eviction leaves it less than a quarter full, it shrinks again, so the memory held after a
+ * burst of transforms is released; the buffer never holds more than four times the samples it contains,
+ * or INITIAL_CAPACITY.
+ * 
+ * A time cache has a single writer at a time (insertData is synchronized) and any number of readers,
+ * which never block: the writer makes the version counter odd while it modifies the buffer, and a
+ * reader retries whenever the version was odd or changed while it was reading. A reader checks that
+ * the version did not change with a compare-and-set of the version to itself rather than a plain read:
+ * the reads of the buffer before a plain volatile read could be reordered after it, whereas the
+ * compare-and-set is a volatile write, so the reads happen before the next version++ of the writer
+ * (which reads the version) and thus before the writes that follow it. A torn sample can therefore
+ * not pass the check, even on weakly ordered processors.
+ * 
+ * Every sample also records the epoch in which it was inserted, so that a reader can look at the buffer
+ * as it was at the end of an earlier epoch (see TfSnapshot), by ignoring the samples inserted after it.
+ * Samples that were replaced or removed since can not be restored: a replaced sample keeps its epoch and
+ * shows its new value, and a removed sample is gone.
+ * 
  * @author Sjoerd van den Dries
  * @version Feb 28, 2011
  */
 public class TimeCache {
     
-    /** Map containing the transformations, ordered in time */
-    protected TreeMap<Long, TransformStorage> storage;
+    /** Number of doubles stored per sample: translation (x, y, z) and rotation (x, y, z, w) */
+    protected static final int SAMPLE_SIZE = 7;
+    /** Number of bytes of buffer a sample takes: its time stamp, its epoch and SAMPLE_SIZE doubles */
+    public static final int BYTES_PER_SAMPLE = 8 + 8 + 8 * SAMPLE_SIZE;
+    /** Initial number of samples the buffer can hold; always a power of two */
+    protected static final int INITIAL_CAPACITY = 16;
+    /** Below this quaternion distance slerp falls back to linear interpolation (same as vecmath) */
+    private static final double SLERP_EPS = 0.000001;
+    
+    /** Value returned by {@link #getData(long, double[], int)} if the cache is empty */
+    public static final long NO_DATA = Long.MIN_VALUE;
+    /** Epoch that includes all samples, whenever they were inserted */
+    public static final long LATEST_EPOCH = Long.MAX_VALUE;
+    
+    /** Time stamps of the samples, in nanoseconds, as a circular buffer */
+    protected long[] stamps;
+    /** Translation and rotation of the samples, SAMPLE_SIZE doubles per sample, as a circular buffer */
+    protected double[] values;
+    /** Epochs in which the samples were inserted, as a circular buffer */
+    protected long[] epochs;
+    /** Physical index of the oldest sample */
+    protected int head;
+    /** Number of samples in the buffer */
+    protected int size;
+    /** Incremented before and after every modification of the buffer; odd while a write is in progress */
+    protected volatile int version;
+    private static final AtomicIntegerFieldUpdater<TimeCache> VERSION =
+        AtomicIntegerFieldUpdater.newUpdater(TimeCache.class, "version");
+    /** Number of times a sample was replaced by a new sample with the same time stamp */
+    protected volatile int replaceCount;
     /** Maximum storage time, in nanoseconds */
     protected long maxStorageTime;
     /** Reference to the parent frame (source frame) */
@@ -53,8 +106,19 @@ public class TimeCache {
      * Class Constructor.
      */
     public TimeCache(long maxStorageTime, Frame parentFrame, Frame childFrame) {
+        this(maxStorageTime, parentFrame, childFrame, INITIAL_CAPACITY);
+    }
+    
+    /**
+     * Class Constructor, for a buffer that initially holds capacity samples; capacity must be a power of two.
+     */
+    protected TimeCache(long maxStorageTime, Frame parentFrame, Frame childFrame, int capacity) {
         this.maxStorageTime = maxStorageTime;
-        this.storage = new TreeMap<Long, TransformStorage>();
+        this.stamps = new long[capacity];
+        this.values = new double[capacity * SAMPLE_SIZE];
+        this.epochs = new long[capacity];
+        this.head = 0;
+        this.size = 0;
         this.parentFrame = parentFrame;
         this.childFrame = childFrame;
     }
@@ -63,16 +127,121 @@ public class TimeCache {
      * Inserts transformation newData in the buffer, while maintaining the time ordering. 
      */
     public boolean insertData(TransformStorage newData) {  
+        return insertData(newData, true);
+    }
+    
+    /**
+     * Inserts transformation newData in the buffer, while maintaining the time ordering. Unless prune is
+     * set, transforms that have become too old are not removed until the next call to prune(), which lets
+     * a batch of inserts share a single pruning pass.
+     */
+    public boolean insertData(TransformStorage newData, boolean prune) {  
+        return insertData(newData, prune, 0);
+    }
+    
+    /**
+     * Same as insertData(TransformStorage, boolean), for a transform inserted in the given epoch. A sample
+     * that replaces one with the same time stamp keeps the epoch of the sample it replaces.
+     */
+    public synchronized boolean insertData(TransformStorage newData, boolean prune, long epoch) {  
+        long time = newData.getTimeStamp();
+        
         // check if data is older than first frame in STORAGE - maxStorageTime
-        if (!storage.isEmpty() && storage.firstKey() - maxStorageTime > newData.getTimeStamp()) {
+        if (size > 0 && stampAt(0) - maxStorageTime > time) {
             return false;                              
         }
         
-        storage.put(newData.getTimeStamp(), newData);       
+        version++; // odd: readers will retry
+        int floor = floorIndex(stamps, head, size, time);
+        if (floor >= 0 && stampAt(floor) == time) {
+            // same time stamp: replace the existing sample
+            writeSample(slot(floor), time, newData.getTranslation(), newData.getRotation());
+            replaceCount++;
+        } else {
+            int slot = openSlot(floor + 1);
+            writeSample(slot, time, newData.getTranslation(), newData.getRotation());
+            epochs[slot] = epoch;
+        }
         
-        removeOldData(); // same as pruneList in time_cache.h        
+        if (prune) {
+            removeOldData(); // same as pruneList in time_cache.h        
+        }
+        version++; // even: buffer is consistent again
         return true;
     }    
+    
+    /**
+     * Removes the count oldest transforms, but keeps at least two transforms, and keeps transforms for at
+     * least minSpan nanoseconds before the newest one; returns the number of transforms removed.
+     */
+    public synchronized int evictOldest(int count, long minSpan) {
+        int removed = 0;
+        while (removed < count && size > 2 && stampAt(size - 1) - stampAt(1) >= minSpan) {
+            if (removed == 0) {
+                version++;
+            }
+            head = (head + 1) & (stamps.length - 1);
+            size--;
+            removed++;
+        }
+        if (removed > 0) {
+            shrinkIfSparse();
+            version++;
+        }
+        return removed;
+    }
+    
+    /**
+     * Sets the time transforms are kept, before the newest one, in nanoseconds, and removes the transforms
+     * that have become too old.
+     */
+    public synchronized void setMaxStorageTime(long maxStorageTime) {
+        this.maxStorageTime = maxStorageTime;
+        prune();
+    }
+    
+    /**
+     * Returns the time transforms are kept, before the newest one, in nanoseconds.
+     */
+    public long getMaxStorageTime() {
+        return maxStorageTime;
+    }
+    
+    /**
+     * Returns the number of transforms in this cache.
+     */
+    public synchronized int getSampleCount() {
+        return size;
+    }
+    
+    /**
+     * Returns the number of transforms this cache can hold before its buffer has to grow.
+     */
+    public synchronized int getCapacity() {
+        return stamps.length;
+    }
+    
+    /**
+     * Returns the rate at which transforms were received, in transforms per second, estimated from the
+     * transforms in this cache; 0 if it holds fewer than two transforms.
+     */
+    public synchronized double getRate() {
+        if (size < 2 || stampAt(size - 1) == stampAt(0)) {
+            return 0;
+        }
+        return (size - 1) * 1E9 / (stampAt(size - 1) - stampAt(0));
+    }
+    
+    /**
+     * Removes all transforms that are more than maxStorageTime older than the newest transform.
+     */
+    public synchronized void prune() {
+        if (size > 0 && stampAt(0) < stampAt(size - 1) - maxStorageTime) {
+            version++;
+            removeOldData();
+            version++;
+        }
+    }
 
     /**
      * Returns the transformation in this buffer at time point time (in nanoseconds);
@@ -83,61 +252,484 @@ public class TimeCache {
      * 
      */
     public TransformStorage getData(long time) {       
+        double[] out = new double[SAMPLE_SIZE];
+        long stamp = getData(time, out, 0);
         
-        if (storage.isEmpty()) {
+        if (stamp == NO_DATA) {
             // TODO: throw error: "Cache for frame " + parentFrame.getFrameID() + " to " + childFrame.getFrameID() + " is empty";
             return null;
-        } else if (storage.size() == 1) {
+        }
+        return new TransformStorage(new Vector3d(out[0], out[1], out[2]),
+                                    new Quat4d(out[3], out[4], out[5], out[6]),
+                                    stamp, parentFrame, childFrame);
+    } 
+    
+    /**
+     * Writes the transformation in this buffer at time point time (in nanoseconds) to out, starting at
+     * outOffset, as translation (x, y, z) followed by rotation (x, y, z, w). Same semantics as getData(long),
+     * but does not allocate. Returns the time stamp of the result, or NO_DATA if the cache is empty.
+     */
+    public long getData(long time, double[] out, int outOffset) {
+        return getData(time, out, outOffset, null, 0);
+    }
+    
+    /**
+     * Same as getData(long, double[], int), but if bracket is not null, also writes the time stamps of the
+     * two samples the result was inter- or extrapolated from to bracket[bracketOffset] and
+     * bracket[bracketOffset + 1] (both the same if the result is a stored sample).
+     */
+    public long getData(long time, double[] out, int outOffset, long[] bracket, int bracketOffset) {
+        return getData(time, out, outOffset, bracket, bracketOffset, LATEST_EPOCH);
+    }
+    
+    /**
+     * Same as getData(long, double[], int, long[], int), but only uses the samples that were inserted in or
+     * before the given epoch, as if the others had not arrived yet.
+     */
+    public long getData(long time, double[] out, int outOffset, long[] bracket, int bracketOffset, long epoch) {
+        while (true) {
+            int v = version;
+            if ((v & 1) == 0) {
+                long[] st = stamps;
+                double[] val = values;
+                long[] ep = epochs;
+                int h = head;
+                int n = size;
+                // the fields may be torn if a write is in progress; only use them if they fit together
+                if (val.length == st.length * SAMPLE_SIZE && ep.length == st.length && n <= st.length) {
+                    long stamp = (epoch == LATEST_EPOCH)
+                                 ? read(st, val, h, n, time, out, outOffset, bracket, bracketOffset)
+                                 : readAt(st, val, ep, h, n, time, epoch, out, outOffset, bracket, bracketOffset);
+                    if (validate(v)) {
+                        return stamp;
+                    }
+                }
+            }
+            Thread.yield();
+        }
+    }
+    
+    /**
+     * Returns the absolute time difference to the nearest transform from the given
+     * time point, in nanoseconds.
+     */
+    public long timeToNearestTransform(long time) {    
+        while (true) {
+            int v = version;
+            if ((v & 1) == 0) {
+                long[] st = stamps;
+                int h = head;
+                int n = Math.min(size, st.length);
+                long result;
+                if (n == 0) {
+                    result = Long.MAX_VALUE;
+                } else {
+                    int mask = st.length - 1;
+                    int floor = floorIndex(st, h, n, time);
+                    if (floor < 0) {
+                        result = st[h & mask] - time;
+                    } else if (floor == n - 1) {
+                        result = time - st[(h + floor) & mask];
+                    } else {
+                        result = Math.min(st[(h + floor + 1) & mask] - time, time - st[(h + floor) & mask]);
+                    }
+                }
+                if (validate(v)) {
+                    return result;
+                }
+            }
+            Thread.yield();
+        }
+    }
+    
+    /**
+     * Writes the time stamps of the two samples getData(time) would inter- or extrapolate from to
+     * bracket[offset] and bracket[offset + 1]; returns false if the cache is empty. Together with
+     * getVersion() and getReplaceCount(), this tells whether a result computed earlier is still valid.
+     */
+    public boolean getBracket(long time, long[] bracket, int offset) {
+        while (true) {
+            int v = version;
+            if ((v & 1) == 0) {
+                long[] st = stamps;
+                int n = Math.min(size, st.length);
+                boolean found = readBracket(st, head, n, time, bracket, offset);
+                if (validate(v)) {
+                    return found;
+                }
+            }
+            Thread.yield();
+        }
+    }
+    
+    /**
+     * Returns the time stamp of the newest transform in this cache, or NO_DATA if the cache is empty.
+     */
+    public long getLatestTimeStamp() {
+        while (true) {
+            int v = version;
+            if ((v & 1) == 0) {
+                long[] st = stamps;
+                int n = Math.min(size, st.length);
+                long result = (n == 0) ? NO_DATA : st[(head + n - 1) & (st.length - 1)];
+                if (validate(v)) {
+                    return result;
+                }
+            }
+            Thread.yield();
+        }
+    }
+    
+    /**
+     * Returns true if the version is still v, after reading the buffer at version v. Unlike a plain read
+     * of the version, this can not be reordered before the reads of the buffer (see the class comment).
+     */
+    protected final boolean validate(int v) {
+        return VERSION.compareAndSet(this, v, v);
+    }
+    
+    /**
+     * Returns the version of this cache, which changes whenever data is inserted or removed.
+     */
+    public int getVersion() {
+        return version;
+    }
+    
+    /**
+     * Returns the number of times a sample in this cache was replaced by a sample with the same time stamp.
+     */
+    public int getReplaceCount() {
+        return replaceCount;
+    }
+    
+    /**
+     * Performs the lookup of getBracket on the given view of the buffer.
+     */
+    protected static boolean readBracket(long[] st, int h, int n, long time, long[] bracket, int offset) {
+        int mask = st.length - 1;
+        long low, high;
+        
+        if (n == 0) {
+            return false;
+        } else if (n == 1) {
+            low = high = st[h & mask];
+        } else if (time < st[h & mask]) {
+            low = st[h & mask];
+            high = st[(h + 1) & mask];
+        } else if (time > st[(h + n - 1) & mask]) {
+            low = st[(h + n - 2) & mask];
+            high = st[(h + n - 1) & mask];
+        } else {
+            int floor = floorIndex(st, h, n, time);
+            low = st[(h + floor) & mask];
+            high = (low == time) ? low : st[(h + floor + 1) & mask];
+        }
+        bracket[offset] = low;
+        bracket[offset + 1] = high;
+        return true;
+    }
+    
+    /**
+     * Performs the lookup of getData(long, double[], int, long[], int) on the given view of the buffer.
+     */
+    protected static long read(long[] st, double[] val, int h, int n, long time, double[] out, int outOffset,
+                               long[] bracket, int bracketOffset) {
+        int mask = st.length - 1;
+        
+        if (n == 0) {
+            return NO_DATA;
+        } else if (n == 1) {
             // only one transform in cache, so return that one
-            return storage.firstEntry().getValue();
+            System.arraycopy(val, (h & mask) * SAMPLE_SIZE, out, outOffset, SAMPLE_SIZE);
+            if (bracket != null) {
+                bracket[bracketOffset] = bracket[bracketOffset + 1] = st[h & mask];
+            }
+            return st[h & mask];
         }        
         
-        TransformStorage low, high;        
+        int low, high;        
         
-        if (time < storage.firstKey()) {
+        if (time < st[h & mask]) {
             // extrapolate back: low = oldest transform
             //                   high = oldest but one 
-            low = storage.firstEntry().getValue();                     // O(1) (I guess?)
-            high = storage.higherEntry(storage.firstKey()).getValue(); // O(log n) --> can be done in O(1), but how?
-        } else if (time > storage.lastKey()) {
+            low = 0;
+            high = 1;
+        } else if (time > st[(h + n - 1) & mask]) {
             // extrapolate forward: low = newest but one
             //                      high = newest transform        
-            low = storage.lowerEntry(storage.lastKey()).getValue();    // O(log n) --> can be done in O(1), but how?
-            high = storage.lastEntry().getValue();                     // O(1) (I guess?)
+            low = n - 2;
+            high = n - 1;
         } else {
             // interpolate: low = newest transform older than time,
             //              high = oldest transform newer than time
-            low = storage.ceilingEntry(time).getValue();
-            high = storage.floorEntry(time).getValue();
+            low = floorIndex(st, h, n, time);
+            int slot = (h + low) & mask;
+            if (st[slot] == time) {
+                System.arraycopy(val, slot * SAMPLE_SIZE, out, outOffset, SAMPLE_SIZE);
+                if (bracket != null) {
+                    bracket[bracketOffset] = bracket[bracketOffset + 1] = time;
+                }
+                return time;
+            }
+            high = low + 1;
         } 
 
-        return TransformStorage.interpolate(low, high, time);
-    
-    } 
+        interpolate(st, val, (h + low) & mask, (h + high) & mask, time, out, outOffset);
+        if (bracket != null) {
+            bracket[bracketOffset] = st[(h + low) & mask];
+            bracket[bracketOffset + 1] = st[(h + high) & mask];
+        }
+        return time;
+    }
     
     /**
-     * Returns the absolute time difference to the nearest transform from the given
-     * time point, in nanoseconds.
+     * Performs the lookup of getData(long, double[], int, long[], int, long) on the given view of the
+     * buffer. The samples inserted after epoch are skipped; since those are usually the newest ones, few
+     * are passed over.
      */
-    public long timeToNearestTransform(long time) {    
-        Long floor = storage.floorKey(time);
-        Long ceiling = storage.ceilingKey(time);
+    protected static long readAt(long[] st, double[] val, long[] ep, int h, int n, long time, long epoch,
+                                 double[] out, int outOffset, long[] bracket, int bracketOffset) {
+        int mask = st.length - 1;
+        
+        // the nearest visible samples at or before time (low), and after time (high)
+        int low = floorIndex(st, h, n, time);
+        while (low >= 0 && ep[(h + low) & mask] > epoch) {
+            low--;
+        }
+        int high = low + 1;
+        while (high < n && (st[(h + high) & mask] <= time || ep[(h + high) & mask] > epoch)) {
+            high++;
+        }
+        
+        if (low < 0 && high >= n) {
+            return NO_DATA;
+        } else if (low >= 0 && st[(h + low) & mask] == time) {
+            high = low;
+        } else if (high >= n) {
+            // extrapolate forward from the newest visible sample and the one before it, if any
+            high = low;
+            low--;
+            while (low >= 0 && ep[(h + low) & mask] > epoch) {
+                low--;
+            }
+            if (low < 0) {
+                low = high;
+            }
+        } else if (low < 0) {
+            // extrapolate back from the oldest visible sample and the one after it, if any
+            low = high;
+            high++;
+            while (high < n && ep[(h + high) & mask] > epoch) {
+                high++;
+            }
+            if (high >= n) {
+                high = low;
+            }
+        }
         
-        if (floor == null) return (ceiling - time);
-        if (ceiling == null) return (time - floor);
-        return Math.min(ceiling - time, time - floor);
+        int lowSlot = (h + low) & mask;
+        int highSlot = (h + high) & mask;
+        if (bracket != null) {
+            bracket[bracketOffset] = st[lowSlot];
+            bracket[bracketOffset + 1] = st[highSlot];
+        }
+        if (low == high) {
+            // a stored sample
+            System.arraycopy(val, lowSlot * SAMPLE_SIZE, out, outOffset, SAMPLE_SIZE);
+            return st[lowSlot];
+        }
+        interpolate(st, val, lowSlot, highSlot, time, out, outOffset);
+        return time;
     }
     
     /**
      * Removes all transforms that are more than maxStorageTime older than the newest transform.
      */
     protected void removeOldData() {
-        if (!storage.isEmpty()) {
-            long timeLowerbound = storage.lastKey() - maxStorageTime;
-            while (!storage.isEmpty() && storage.firstKey() < timeLowerbound) {
-                storage.pollFirstEntry();
+        if (size > 0) {
+            long timeLowerbound = stampAt(size - 1) - maxStorageTime;
+            while (size > 0 && stampAt(0) < timeLowerbound) {
+                head = (head + 1) & (stamps.length - 1);
+                size--;
             }       
+            shrinkIfSparse();
         }
     }     
     
+    /**
+     * Returns a reference to the parent frame (source frame).
+     */
+    public Frame getParentFrame() {
+        return parentFrame;
+    }
+    
+    /**
+     * Returns a reference to the child frame (target frame).
+     */
+    public Frame getChildFrame() {
+        return childFrame;
+    }
+    
+    /**
+     * Returns the physical buffer index of the sample with logical index i (0 is the oldest sample).
+     */
+    protected int slot(int i) {
+        return (head + i) & (stamps.length - 1);
+    }
+    
+    /**
+     * Returns the time stamp of the sample with logical index i.
+     */
+    protected long stampAt(int i) {
+        return stamps[slot(i)];
+    }
+    
+    /**
+     * Returns the logical index of the newest sample with a time stamp at or before time,
+     * or -1 if all samples are newer, in the n samples of st starting at physical index h.
+     */
+    protected static int floorIndex(long[] st, int h, int n, long time) {
+        int mask = st.length - 1;
+        int low = 0;
+        int high = n - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midStamp = st[(h + mid) & mask];
+            if (midStamp <= time) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+    
+    /**
+     * Makes room for a new sample at logical index i, shifting the samples at and after i one place
+     * towards the end (or moving the head back if i is 0), and returns the physical index of the free slot.
+     */
+    protected int openSlot(int i) {
+        if (size == stamps.length) {
+            grow();
+        }
+        int mask = stamps.length - 1;
+        if (i == 0) {
+            head = (head - 1) & mask;
+        } else {
+            for (int j = size; j > i; j--) {
+                int to = slot(j);
+                int from = slot(j - 1);
+                stamps[to] = stamps[from];
+                epochs[to] = epochs[from];
+                System.arraycopy(values, from * SAMPLE_SIZE, values, to * SAMPLE_SIZE, SAMPLE_SIZE);
+            }
+        }
+        size++;
+        return slot(i);
+    }
+    
+    /**
+     * Doubles the capacity of the buffer.
+     */
+    protected void grow() {
+        resize(stamps.length * 2);
+    }
+    
+    /**
+     * Halves the capacity of the buffer while it is at most a quarter full, down to INITIAL_CAPACITY. Only
+     * call this while the version is odd.
+     */
+    protected void shrinkIfSparse() {
+        int capacity = stamps.length;
+        while (capacity > INITIAL_CAPACITY && size <= capacity / 4) {
+            capacity /= 2;
+        }
+        if (capacity < stamps.length) {
+            resize(capacity);
+        }
+    }
+    
+    /**
+     * Moves the samples to new arrays of the given capacity, which must be a power of two of at least size,
+     * unrolling the buffer so that the oldest sample is at index 0.
+     */
+    private void resize(int newCapacity) {
+        int capacity = stamps.length;
+        long[] newStamps = new long[newCapacity];
+        double[] newValues = new double[newCapacity * SAMPLE_SIZE];
+        long[] newEpochs = new long[newCapacity];
+        int firstPart = Math.min(size, capacity - head);
+        System.arraycopy(stamps, head, newStamps, 0, firstPart);
+        System.arraycopy(stamps, 0, newStamps, firstPart, size - firstPart);
+        System.arraycopy(epochs, head, newEpochs, 0, firstPart);
+        System.arraycopy(epochs, 0, newEpochs, firstPart, size - firstPart);
+        System.arraycopy(values, head * SAMPLE_SIZE, newValues, 0, firstPart * SAMPLE_SIZE);
+        System.arraycopy(values, 0, newValues, firstPart * SAMPLE_SIZE, (size - firstPart) * SAMPLE_SIZE);
+        stamps = newStamps;
+        values = newValues;
+        epochs = newEpochs;
+        head = 0;
+    }
+    
+    /**
+     * Stores the given sample in the buffer at physical index slot.
+     */
+    protected void writeSample(int slot, long time, Vector3d translation, Quat4d rotation) {
+        int offset = slot * SAMPLE_SIZE;
+        stamps[slot] = time;
+        values[offset]     = translation.x;
+        values[offset + 1] = translation.y;
+        values[offset + 2] = translation.z;
+        values[offset + 3] = rotation.x;
+        values[offset + 4] = rotation.y;
+        values[offset + 5] = rotation.z;
+        values[offset + 6] = rotation.w;
+    }
+    
+    /**
+     * Inter- or extrapolates between the samples at physical indices slot1 and slot2 of the given buffer
+     * to the given time,
+     * and writes the resulting translation and rotation to out, starting at outOffset. The translation is
+     * interpolated linearly, the rotation by spherical linear interpolation, as in Quat4d.interpolate.
+     */
+    protected static void interpolate(long[] st, double[] values, int slot1, int slot2, long time,
+                                      double[] out, int outOffset) {
+        long time1 = st[slot1];
+        long time2 = st[slot2];
+        int o1 = slot1 * SAMPLE_SIZE;
+        int o2 = slot2 * SAMPLE_SIZE;
+        
+        // Check for zero distance case 
+        double ratio = (time1 == time2) ? 0 : (double)(time - time1) / (time2 - time1);
+        
+        // interpolate translation
+        for (int k = 0; k < 3; k++) {
+            out[outOffset + k] = values[o1 + k] + ratio * (values[o2 + k] - values[o1 + k]);
+        }
+        
+        // interpolate rotation
+        double x1 = values[o1 + 3], y1 = values[o1 + 4], z1 = values[o1 + 5], w1 = values[o1 + 6];
+        double x2 = values[o2 + 3], y2 = values[o2 + 4], z2 = values[o2 + 5], w2 = values[o2 + 6];
+        double dot = x1 * x2 + y1 * y2 + z1 * z2 + w1 * w2;
+        if (dot < 0) {
+            // take the shortest path
+            x1 = -x1; y1 = -y1; z1 = -z1; w1 = -w1;
+            dot = -dot;
+        }
+        double s1, s2;
+        if ((1.0 - dot) > SLERP_EPS) {
+            double om = Math.acos(dot);
+            double sinom = Math.sin(om);
+            s1 = Math.sin((1.0 - ratio) * om) / sinom;
+            s2 = Math.sin(ratio * om) / sinom;
+        } else {
+            s1 = 1.0 - ratio;
+            s2 = ratio;
+        }
+        out[outOffset + 3] = s1 * x1 + s2 * x2;
+        out[outOffset + 4] = s1 * y1 + s2 * y2;
+        out[outOffset + 5] = s1 * z1 + s2 * z2;
+        out[outOffset + 6] = s1 * w1 + s2 * w2;
+    }
+    
 }
@@ -41,8 +41,11 @@ import org.ros.message.Time;
 public class TransformChangeDetector {
 
   private TfListener mainListener;
-  private String targetFrame;
-  private String sourceFrame;
+  private String targetFrameID;
+  private String sourceFrameID;
+  // handles of the frames, or -1 until the frame has been seen
+  private int targetFrame = -1;
+  private int sourceFrame = -1;
 
   private StampedTransform previousTransform;
 
@@ -56,8 +59,8 @@ public class TransformChangeDetector {
                                   String targetFrame,
                                   String sourceFrame ) {
     this.mainListener = mainListener;
-    this.targetFrame = targetFrame;
-    this.sourceFrame = sourceFrame;
+    this.targetFrameID = targetFrame;
+    this.sourceFrameID = sourceFrame;
   }
 
   /**
@@ -68,8 +71,21 @@ public class TransformChangeDetector {
    *          last time getChangedTransform() was called, otherwise null.
    */
   public StampedTransform getChangedTransform() {
-    StampedTransform newTransform = mainListener.lookupTransform(targetFrame, sourceFrame,
-                                                                 Time.fromMillis(System.currentTimeMillis()));
+    // resolve the handles once the frames exist, without registering frames that may never be published
+    if (targetFrame < 0) {
+      targetFrame = mainListener.findFrameHandle(targetFrameID);
+    }
+    if (sourceFrame < 0) {
+      sourceFrame = mainListener.findFrameHandle(sourceFrameID);
+    }
+    StampedTransform newTransform;
+    if (targetFrame < 0 || sourceFrame < 0) {
+      newTransform = mainListener.lookupTransform(targetFrameID, sourceFrameID,
+                                                  Time.fromNano(System.currentTimeMillis() * 1000000L));
+    } else {
+      newTransform = mainListener.lookupTransform(targetFrame, sourceFrame,
+                                                  System.currentTimeMillis() * 1000000L);
+    }
     if(newTransform != null) {
       if(previousTransform == null || !newTransform.getMatrix4().equals(previousTransform.getMatrix4())) {
         previousTransform = newTransform;
@@ -39,7 +39,7 @@ import javax.vecmath.Vector3d;
  * A transformation object of this class is internally represented by a translation vector and
  * rotation quaternion. Since tf messages are also represented this way, no expensive conversion
  * takes place if a tf is stored in the buffer. Once a transform of this type is needed for actual
- * transformation, it is converted to a {@link StampedTransform} object that is represented by a 4x4 matrix.
+ * transformation, it is converted to a {@link StampedTransform} object.
  * 
  * @author Sjoerd van den Dries
  * @version March 3, 2011